@@ -1,3 +1,38 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  *
@@ -13,12 +48,39 @@
 
 public class AVLTree {
 	
+	public static final BalancePolicy AVL = new AVLPolicy();
+	public static final BalancePolicy WAVL = new WAVLPolicy();
+	public static final BalancePolicy RED_BLACK = new RedBlackPolicy();
+	
+	private static final int COMPACT_STEP = 4; // tombstones unlinked per insert or delete over the threshold
+	
+	private final BalancePolicy policy;
+	private final IAVLNode virtualLeaf = new AVLNode(-1, null, null); // shared child of all the leaves
+	private AVLNode[] pool = new AVLNode[0]; // free list of removed nodes
+	private int pooled = 0;
 	private IAVLNode root;
 	private IAVLNode min = null, max = null;
+	private boolean lazyDelete = false; // delete only marks nodes (tombstones)
+	private double compactRatio = 0.5; // unlink tombstones while they exceed this part of the nodes
+	private int tombstones = 0;
+	private int[] purgeKeys = new int[16]; // ring of the keys marked deleted, oldest first
+	private int purgeHead = 0, purgeCount = 0;
+	private int windowSize = 0, windowAge = 0; // sliding window bounds, 0 for no bound
+	private ChangeFeed changes = null; // feed of inserts and deletes, null when off
+	private boolean merkle = false; // nodes are MerkleNodes keeping the hash of their subtree's items
+	private boolean ranged = false; // nodes are RangeNodes (or MerkleNodes), since the first range update
+	private ValueStore valueStore = null; // dictionary and off-heap slabs of the infos, null when off
+	private Profiler profiler = null; // counts the traffic, null when off
 	
 	//Constructor for empty tree
 	public AVLTree() {
+		this(AVL);
+	}
+	
+	//Constructor for empty tree balanced by the given policy (AVL, WAVL or RED_BLACK)
+	public AVLTree(BalancePolicy policy) {
 		
+		this.policy = policy;
 		this.root = new AVLNode(-1, null);
 		this.min = this.root;
 		this.max = this.root;
@@ -27,10 +89,9 @@ public class AVLTree {
 	//Constructor for tree with given key and info 
 	public AVLTree(int key, String val) {
 		
-		IAVLNode root = new AVLNode(key, val);
+		this.policy = AVL;
+		IAVLNode root = new AVLNode(key, val, virtualLeaf);
 		this.root = root;
-		root.setRight(new AVLNode(-1, null));
-		root.setLeft(new AVLNode(-1, null));
 		this.min = this.root;
 		this.max = this.root;
 		root.setSum(key);
@@ -60,8 +121,11 @@ public class AVLTree {
 	public String search(int k)
 	{
 		
+		if (profiler != null) {
+			profile(Profiler.SEARCH, k);
+		}
 		IAVLNode node = searchRec(k, this.root);
-		if (node == null) {
+		if (node == null || isDeleted(node)) {
 			return null;
 		}
 		return node.getValue();
@@ -93,15 +157,44 @@ public class AVLTree {
    */
 	public int insert(int k, String i) {
 		
+		if (profiler != null) {
+			profile(Profiler.INSERT, k);
+		}
+		int cnt = insertItem(k, i);
+		if (cnt != -1 && changes != null) {
+			changes.append(ChangeFeed.INSERT, k, i);
+		}
+		if (cnt != -1 && tombstones > 0) {
+			cnt += purgeTombstones();
+		}
+		if (cnt != -1 && (windowSize > 0 || windowAge > 0)) {
+			cnt += evict();
+			if (valueStore != null && valueStore.wantsCompaction()) {
+				compactValues();
+			}
+		}
+		return cnt;
+	}
+	
+	private int insertItem(int k, String i) {
+		
+		// a deleted key that is still in the tree is revived in place
+		if (tombstones > 0) {
+			IAVLNode node = searchForDelete(this.root, k);
+			if (node.getKey() == k && isDeleted(node)) {
+				revive(node, i);
+				return 0;
+			}
+		}
+		
 		//build new node with the given key and info
-		IAVLNode newNode = new AVLNode(k, i);
-		newNode.setRight(new AVLNode(-1, null));
-		newNode.setLeft(new AVLNode(-1, null));
-		newNode.setHeight(0);
+		IAVLNode newNode = obtainNode(k, i);
+		rehash(newNode);
 		
 		
 		//check if the tree is empty
 		if (empty()) {
+			storeInfo(newNode, i);
 			this.root = newNode;
 			this.root.setParent(null);
 			this.max = newNode;
@@ -119,8 +212,10 @@ public class AVLTree {
 		
 		IAVLNode insertPlace = searchForInsert(this.root, k, i);
 		if (insertPlace == null) {
+			release(newNode);
 			return -1;
 		}
+		storeInfo(newNode, i);
 		newNode.setParent(insertPlace);
 		if (k > insertPlace.getKey()) {
 			insertPlace.setRight(newNode);
@@ -130,10 +225,9 @@ public class AVLTree {
 		}
 		
 		updateSum(newNode);
-		updateHeight(newNode);
 		updateSize(newNode);
 		
-		int cnt = checkBalance(insertPlace);
+		int cnt = policy.rebalanceInsert(this, newNode);
 		
 		return cnt;
    }
@@ -141,6 +235,7 @@ public class AVLTree {
 	private IAVLNode searchForInsert(IAVLNode node, int k, String info) {
 		
 		IAVLNode result;
+		pushDown(node);
 		if (k == node.getKey()) {
 			return null;
 		}
@@ -166,7 +261,7 @@ public class AVLTree {
 		
 		while (node.getParent() != null) {
 			node = node.getParent();
-			node.setSubtreeSize(node.getLeft().getSubtreeSize() + node.getRight().getSubtreeSize() + 1);
+			node.setSubtreeSize(node.getLeft().getSubtreeSize() + node.getRight().getSubtreeSize() + liveCount(node));
 		}
 	}
 	
@@ -182,7 +277,8 @@ public class AVLTree {
 		
 		node = node.getParent();
 		while (node != null) {
-			node.setSum(node.getRight().getSum() + node.getLeft().getSum() + node.getKey());
+			node.setSum(node.getRight().getSum() + node.getLeft().getSum() + liveValue(node));
+			rehash(node);
 			node = node.getParent();
 		}
 	}
@@ -266,6 +362,11 @@ public class AVLTree {
 	 */
 	private void LLrotation(IAVLNode node) {
 		
+		if (profiler != null) {
+			profiler.rotated(Profiler.LL);
+		}
+		pushDown(node);
+		pushDown(node.getLeft());
 		IAVLNode tmpAR = node.getLeft().getRight();
 		IAVLNode tmpA = node.getLeft();
 		IAVLNode tmpB = node;
@@ -289,13 +390,15 @@ public class AVLTree {
 		updateHeight2(tmpA);
 		
 		// update size
-		tmpB.setSubtreeSize(tmpAR.getSubtreeSize() + tmpB.getRight().getSubtreeSize() + 1);
-		tmpA.setSubtreeSize(tmpA.getLeft().getSubtreeSize() + tmpB.getSubtreeSize() + 1);
+		tmpB.setSubtreeSize(tmpAR.getSubtreeSize() + tmpB.getRight().getSubtreeSize() + liveCount(tmpB));
+		tmpA.setSubtreeSize(tmpA.getLeft().getSubtreeSize() + tmpB.getSubtreeSize() + liveCount(tmpA));
 		updateSize(tmpA);
 		
 		// update sum
 		tmpA.setSum(tmpB.getSum());
-		tmpB.setSum(tmpB.getLeft().getSum() + tmpB.getRight().getSum() + tmpB.getKey());
+		tmpB.setSum(tmpB.getLeft().getSum() + tmpB.getRight().getSum() + liveValue(tmpB));
+		rehash(tmpB);
+		rehash(tmpA);
 		updateSum(tmpA);
 		
 		if (tmpA.getParent() == null){
@@ -305,6 +408,11 @@ public class AVLTree {
 	
 	private void RRrotation(IAVLNode node) {
 		
+		if (profiler != null) {
+			profiler.rotated(Profiler.RR);
+		}
+		pushDown(node);
+		pushDown(node.getRight());
 		IAVLNode tmpB = node;
 		IAVLNode tmpAL = tmpB.getRight().getLeft();
 		IAVLNode tmpA = tmpB.getRight();
@@ -328,13 +436,15 @@ public class AVLTree {
 		updateHeight2(tmpA);
 		
 		// update size
-		tmpB.setSubtreeSize(tmpB.getLeft().getSubtreeSize() + tmpAL.getSubtreeSize() + 1);
-		tmpA.setSubtreeSize(tmpB.getSubtreeSize() + tmpA.getRight().getSubtreeSize() + 1);
+		tmpB.setSubtreeSize(tmpB.getLeft().getSubtreeSize() + tmpAL.getSubtreeSize() + liveCount(tmpB));
+		tmpA.setSubtreeSize(tmpB.getSubtreeSize() + tmpA.getRight().getSubtreeSize() + liveCount(tmpA));
 		updateSize(tmpA);
 		
 		// update sum
 		tmpA.setSum(tmpB.getSum());
-		tmpB.setSum(tmpB.getLeft().getSum() + tmpB.getRight().getSum() + tmpB.getKey());
+		tmpB.setSum(tmpB.getLeft().getSum() + tmpB.getRight().getSum() + liveValue(tmpB));
+		rehash(tmpB);
+		rehash(tmpA);
 		updateSum(tmpA);
 		
 		if (tmpA.getParent() == null) {
@@ -344,6 +454,12 @@ public class AVLTree {
 	
 	private void RLrotation(IAVLNode node) {
 		
+		if (profiler != null) {
+			profiler.rotated(Profiler.RL);
+		}
+		pushDown(node);
+		pushDown(node.getRight());
+		pushDown(node.getRight().getLeft());
 		IAVLNode tmpC = node;
 		IAVLNode tmpBL = tmpC.getRight().getLeft().getLeft();
 		IAVLNode tmpBR = tmpC.getRight().getLeft().getRight();
@@ -374,15 +490,18 @@ public class AVLTree {
 		updateHeight2(tmpB);
 		
 		// update size
-		node.setSubtreeSize(node.getLeft().getSubtreeSize() + tmpBL.getSubtreeSize() + 1);
-		tmpA.setSubtreeSize(tmpA.getRight().getSubtreeSize() + tmpBR.getSubtreeSize() + 1);
-		tmpB.setSubtreeSize(node.getSubtreeSize() + tmpA.getSubtreeSize() + 1);
+		node.setSubtreeSize(node.getLeft().getSubtreeSize() + tmpBL.getSubtreeSize() + liveCount(node));
+		tmpA.setSubtreeSize(tmpA.getRight().getSubtreeSize() + tmpBR.getSubtreeSize() + liveCount(tmpA));
+		tmpB.setSubtreeSize(node.getSubtreeSize() + tmpA.getSubtreeSize() + liveCount(tmpB));
 		updateSize(tmpB);
 		
 		// update sum
 		tmpB.setSum(node.getSum());
-		tmpA.setSum(tmpA.getRight().getSum() + tmpBR.getSum() + tmpA.getKey());
-		node.setSum(node.getLeft().getSum() + tmpBL.getSum() + node.getKey());
+		tmpA.setSum(tmpA.getRight().getSum() + tmpBR.getSum() + liveValue(tmpA));
+		node.setSum(node.getLeft().getSum() + tmpBL.getSum() + liveValue(node));
+		rehash(tmpA);
+		rehash(node);
+		rehash(tmpB);
 		updateSum(tmpB);
 		
 		if (tmpB.getParent() == null) {
@@ -392,6 +511,12 @@ public class AVLTree {
 	
 	private void LRrotation(IAVLNode node) {
 		
+		if (profiler != null) {
+			profiler.rotated(Profiler.LR);
+		}
+		pushDown(node);
+		pushDown(node.getLeft());
+		pushDown(node.getLeft().getRight());
 		IAVLNode tmpC = node;
 		IAVLNode tmpBL = tmpC.getLeft().getRight().getLeft();
 		IAVLNode tmpBR = tmpC.getLeft().getRight().getRight();
@@ -422,15 +547,18 @@ public class AVLTree {
 		updateHeight2(tmpB);
 		
 		// update size
-		tmpC.setSubtreeSize(tmpBR.getSubtreeSize() + tmpC.getRight().getSubtreeSize() + 1);
-		tmpA.setSubtreeSize(tmpBL.getSubtreeSize() + tmpA.getLeft().getSubtreeSize() + 1);
-		tmpB.setSubtreeSize(tmpC.getSubtreeSize() + tmpA.getSubtreeSize() + 1);
+		tmpC.setSubtreeSize(tmpBR.getSubtreeSize() + tmpC.getRight().getSubtreeSize() + liveCount(tmpC));
+		tmpA.setSubtreeSize(tmpBL.getSubtreeSize() + tmpA.getLeft().getSubtreeSize() + liveCount(tmpA));
+		tmpB.setSubtreeSize(tmpC.getSubtreeSize() + tmpA.getSubtreeSize() + liveCount(tmpB));
 		updateSize(tmpB);
 		
 		// update sum
 		tmpB.setSum(node.getSum());
-		tmpA.setSum(tmpA.getLeft().getSum() + tmpBL.getSum() + tmpA.getKey());
-		node.setSum(node.getRight().getSum() + tmpBR.getSum() + node.getKey());
+		tmpA.setSum(tmpA.getLeft().getSum() + tmpBL.getSum() + liveValue(tmpA));
+		node.setSum(node.getRight().getSum() + tmpBR.getSum() + liveValue(node));
+		rehash(tmpA);
+		rehash(node);
+		rehash(tmpB);
 		updateSum(tmpB);
 		
 		if (tmpB.getParent() == null) {
@@ -449,717 +577,6228 @@ public class AVLTree {
 	*/
 	public int delete(int k) {
 		
+		if (profiler != null) {
+			profile(Profiler.DELETE, k);
+		}
+		int cnt = deleteItem(k);
+		if (cnt != -1 && changes != null) {
+			changes.append(ChangeFeed.DELETE, k, null);
+		}
+		if (cnt != -1 && valueStore != null && valueStore.wantsCompaction()) {
+			compactValues();
+		}
+		return cnt;
+	}
+	
+	private int deleteItem(int k) {
+		
 		// if the tree is empty
 		if (this.empty()) {
 			return -1;
 		}
-
-		// search for node k in the tree (if exist)
-		IAVLNode deleteNode = searchForDelete(this.root, k);
-
-		// if k is not in the tree return -1
-		if (deleteNode.getKey() != k) {
-			return -1;
-		}
 		
-		// if there is only one or two nodes in the tree
-		if (this.getRoot().getSubtreeSize() == 1) {
-			IAVLNode vn = new AVLNode(-1, null);
-			this.root = vn;
-			this.max = null;
-			this.min = null;
-			this.root.setParent(null);
-			return 0;
-		}
-		else if (this.getRoot().getSubtreeSize() == 2) {
-			// deleted node is the root
-			if (this.getRoot().getKey() == k) {
-				if (this.getRoot().getLeft().getKey() == -1) {
-					this.root = this.getRoot().getRight();
-				}
-				else {
-					this.root = this.getRoot().getLeft();
-				}
-			}
-			else {
-				IAVLNode vn = new AVLNode(-1,null);
-				this.getRoot().setLeft(vn);
-				this.getRoot().setRight(vn);
-			}
-			this.root.setHeight(0);
-			this.root.setSubtreeSize(1);
-			this.root.setSum(root.getKey());
-			this.root.setParent(null);
-			this.min = root;
-			this.max = root;
-			return 0;
+		if (lazyDelete) {
+			return markDeleted(k);
 		}
+		return unlinkAndRebalance(k);
+	}
+	
+	/**
+	 * public void rangeAdd(int lo, int hi, int delta)
+	 *
+	 * adds delta to the value of every key in [lo, hi], in O(log n).
+	 * The value of a key is the key itself until it is changed by a range update;
+	 * less sums values.
+	 * The first range update of a tree rebuilds it with RangeNodes, which keep
+	 * the values and pending updates (and drops the tombstones and the free list), O(n).
+	 */
+	public void rangeAdd(int lo, int hi, int delta) {
 		
-		/** DELTET NODE FROM THE TREE */
-		int cntSuccessor = 0;
-		boolean flag = false;
-		boolean successorFlag = false;
-		// if delete node is a leaf
-		if (deleteNode.getHeight() == 0) {
-			if (deleteNode.getParent().getKey() < k) {
-				deleteNode.getParent().setRight(new AVLNode(-1, null));
-			}
-			else {
-				deleteNode.getParent().setLeft(new AVLNode(-1, null));
-			}
-		}
-		// if delete node has one child
-		else if (deleteNode.getLeft().isRealNode() && !deleteNode.getRight().isRealNode()) {
-			if (deleteNode.getParent().getKey() > k) {
-				deleteNode.getParent().setLeft(deleteNode.getLeft());
-			}
-			else {
-				deleteNode.getParent().setRight(deleteNode.getLeft());
-			}
-			deleteNode.getLeft().setParent(deleteNode.getParent());
-		}
-		else if (!deleteNode.getLeft().isRealNode() && deleteNode.getRight().isRealNode()) {
-			if (deleteNode.getParent() != null) {
-				if (deleteNode.getParent().getKey() > k) {
-					deleteNode.getParent().setLeft(deleteNode.getRight());
-				}
-				else {
-					deleteNode.getParent().setRight(deleteNode.getRight());
-				}
-			}
-			deleteNode.getRight().setParent(deleteNode.getParent());
-
-		}
-		// if deleted node has 2 children
-		else {
-			IAVLNode successor = getSuccessor(deleteNode);
-			IAVLNode tmp = successor.getParent(); //to update height if deleted node is a root
-			if (!successor.getLeft().isRealNode()) {
-				successorFlag = true;
-			}
-			// the successor is the right child of the deleted node
-			if (successor.getParent() == deleteNode) {
-				// deleted node is a root
-				if (deleteNode.getParent() == null) {
-					flag = true;
-					if (successor.getKey() > k) {
-						successor.setLeft(deleteNode.getLeft());
-					}
-					else {
-						successor.setRight(deleteNode.getRight());
-					}
-					successor.setParent(null);
-					successor.setLeft(deleteNode.getLeft());
-					updateHeightAfterDeleteForSuccessor(tmp);
-					updateSumAfterDeleteForSuccessor(tmp, successor.getKey());
-					updateSizeAfterDeleteForSuccessor(tmp);
-					this.root = successor;
-					
-				}
-				// deleted node is not a root
-				else if (deleteNode.getParent().getKey() > k) {
-					deleteNode.getParent().setLeft(successor);
-					successor.setParent(deleteNode.getParent());
-				}
-				else {
-					deleteNode.getParent().setRight(successor);
-					successor.setParent(deleteNode.getParent());
-				}
-				successor.setLeft(deleteNode.getLeft());
-				deleteNode.getLeft().setParent(successor);
-				}
-			else {
-				if (successor.getRight().isRealNode()) {
-					successor.getParent().setLeft(successor.getRight());
-					successor.getRight().setParent(successor.getParent());
-				}
-				else {
-					successor.getParent().setLeft(successor.getRight());
-				}
-				// deleted node is a root
-				if (deleteNode.getParent() == null) {
-					flag = true;
-					successor.setParent(null);
-					successor.setRight(deleteNode.getRight());
-					successor.setLeft(deleteNode.getLeft());
-					successor.setLeft(deleteNode.getLeft());
-					successor.setRight(deleteNode.getRight());
-					deleteNode.getRight().setParent(successor);
-					deleteNode.getLeft().setParent(successor);
-					this.root = successor;
-				}
-				else if (deleteNode.getParent().getKey() > k) {
-					deleteNode.getParent().setLeft(successor);
-					successor.setLeft(deleteNode.getLeft());
-					successor.setRight(deleteNode.getRight());
-					successor.setParent(deleteNode.getParent());
-					deleteNode.getRight().setParent(successor);
-					deleteNode.getLeft().setParent(successor);
-				}
-				else {
-					deleteNode.getParent().setRight(successor);
-					successor.setLeft(deleteNode.getLeft());
-					successor.setRight(deleteNode.getRight());
-					successor.setParent(deleteNode.getParent());
-					deleteNode.getRight().setParent(successor);
-					deleteNode.getLeft().setParent(successor);
-				}
-			}
-			
-			updateHeightAfterDeleteForSuccessor(tmp);
-			updateSumAfterDeleteForSuccessor(tmp, successor.getKey());
-			updateSizeAfterDeleteForSuccessor(tmp);
-			cntSuccessor += checkBalance(tmp);
-			
-			successor.setHeight(Math.max(successor.getLeft().getHeight(), successor.getRight().getHeight()) + 1);
-			successor.setSubtreeSize(successor.getLeft().getSubtreeSize() + successor.getRight().getSubtreeSize() + 1);
-			successor.setSum(successor.getLeft().getSum() + successor.getRight().getSum() + successor.getKey());
-			cntSuccessor += checkBalance(successor);
-			if (successorFlag) {
-				deleteNode = tmp;
-			}	
+		if (!empty() && lo <= hi) {
+			useRangeNodes();
+			rangeUpdate(this.root, lo, hi, 1, delta, Long.MIN_VALUE, Long.MAX_VALUE);
 		}
+	}
+	
+	/**
+	 * public void rangeScale(int lo, int hi, int factor)
+	 *
+	 * multiplies the value of every key in [lo, hi] by factor, in O(log n).
+	 */
+	public void rangeScale(int lo, int hi, int factor) {
 		
-		//update height
-		updateHeight(deleteNode);
-		// update size
-		updateSize(deleteNode);
-		// update sum
-		updateSum(deleteNode);
-		
-		int count = cntSuccessor;
-		if (flag == true) {
-			count = checkBalance(this.root);
-		}
-		IAVLNode y = deleteNode.getParent();
-		while (y != null) {
-			count += checkBalance(y);
-			y = y.getParent();
+		if (!empty() && lo <= hi) {
+			useRangeNodes();
+			rangeUpdate(this.root, lo, hi, factor, 0, Long.MIN_VALUE, Long.MAX_VALUE);
 		}
+	}
+	
+	// switches the tree to RangeNodes, once; MerkleNodes already are
+	private void useRangeNodes() {
 		
-		// update max and min
-		if (min.getKey() == k) {
-			min = findMin();
+		if (ranged) {
+			return;
 		}
-		else if (max.getKey() == k) {
-			max = findMax();
+		this.ranged = true;
+		if (!merkle) {
+			Arrays.fill(pool, null); // pooled nodes are plain
+			pooled = 0;
+			rebuildLive();
 		}
-		
-		return count;
 	}
 	
-	private IAVLNode searchForDelete(IAVLNode node, int k) {
+	/**
+	 * applies value -> scale * value + shift to the keys in [lo, hi] in node's subtree.
+	 * A subtree that lies inside [lo, hi] only gets a pending tag on its root,
+	 * which is pushed to the children by the next descent or rotation through it,
+	 * so only the two boundary paths are visited.
+	 * @param low, high - exclusive bounds of the keys in node's subtree
+	 */
+	private void rangeUpdate(IAVLNode node, int lo, int hi, int scale, int shift, long low, long high) {
 		
-		IAVLNode result;
-		if (node.getKey() == k || !node.isRealNode()) {
-			return node;
+		if (!node.isRealNode()) {
+			return;
 		}
-		else if (k < node.getKey()) {
-			result = searchForDelete(node.getLeft(), k);
+		if (lo <= low + 1 && high - 1 <= hi) {
+			((RangeNode) node).apply(scale, shift);
+			return;
 		}
-		else {
-			result = searchForDelete(node.getRight(), k);
+		pushDown(node);
+		int k = node.getKey();
+		if (lo < k) {
+			rangeUpdate(node.getLeft(), lo, hi, scale, shift, low, k);
 		}
-		return result;
+		if (k < hi) {
+			rangeUpdate(node.getRight(), lo, hi, scale, shift, k, high);
+		}
+		if (lo <= k && k <= hi) {
+			AVLNode real = (AVLNode) node;
+			real.setNodeValue(scale * real.getNodeValue() + shift);
+		}
+		node.setSum(node.getLeft().getSum() + node.getRight().getSum() + liveValue(node));
 	}
 	
-	private void updateSumAfterDeleteForSuccessor(IAVLNode node, int k) {
+	/**
+	 * public void setWindow(int maxSize, int maxAge)
+	 *
+	 * Turns the tree into a sliding window over its keys: after every insert,
+	 * the item with the smallest key is evicted while there are more than maxSize items,
+	 * or while the smallest key is more than maxAge below the largest key.
+	 * 0 means no bound.
+	 * Eviction unlinks the min node directly, without the search and successor
+	 * splice of delete (in lazy delete mode it marks it like delete does).
+	 */
+	public void setWindow(int maxSize, int maxAge) {
 		
-		while (node.getParent() != null) {
-			node.setSum(node.getRight().getSum() + node.getLeft().getSum() + node.getKey());
-			node = node.getParent();
+		if (maxSize < 0 || maxAge < 0) {
+			throw new IllegalArgumentException("window bounds must not be negative");
 		}
+		this.windowSize = maxSize;
+		this.windowAge = maxAge;
+		evict();
 	}
 	
-	private void updateHeightAfterDeleteForSuccessor(IAVLNode node) {
+	/**
+	 * evicts the smallest keys until the tree fits in the window
+	 * @return number of rebalancing operations
+	 */
+	private int evict() {
 		
-		while (node != null) {
-			node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1);
-			node = node.getParent();
+		int cnt = 0;
+		while (!empty() && ((windowSize > 0 && size() > windowSize)
+				|| (windowAge > 0 && (long) max.getKey() - min.getKey() > windowAge))) {
+			if (changes != null) {
+				changes.append(ChangeFeed.DELETE, min.getKey(), null);
+			}
+			cnt += lazyDelete ? markDeleted(min.getKey()) : removeMin();
 		}
+		return cnt;
 	}
 	
-	private void updateSizeAfterDeleteForSuccessor(IAVLNode node) {
+	/**
+	 * removes the min node. It has no left child, so it is replaced
+	 * by its right child (a leaf, if any), and the new min is that child or the parent.
+	 * @return number of rebalancing operations
+	 */
+	private int removeMin() {
 		
-		while (node != null) {
-			node.setSubtreeSize((node.getLeft().getSubtreeSize() + node.getRight().getSubtreeSize()) + 1);
-			node = node.getParent();
+		IAVLNode node = this.min;
+		dropInfo(node);
+		if (size() == 1) {
+			rebuild(new int[0], new String[0], new int[0]);
+			release(node);
+			return 0;
+		}
+		pushPath(node);
+		IAVLNode parent = node.getParent();
+		IAVLNode child = node.getRight();
+		if (parent == null) {
+			this.root = child;
+			child.setParent(null);
+			this.min = child;
+			release(node);
+			return 0;
+		}
+		parent.setLeft(child);
+		if (child.isRealNode()) {
+			child.setParent(parent);
+			this.min = child;
+		}
+		else {
+			this.min = parent;
 		}
+		updateAugmentation(parent);
+		release(node);
+		return policy.rebalanceDelete(this, parent, child);
 	}
 	
-	private IAVLNode findMax() {
+	// pushes the pending range updates on the path from the root to node
+	private void pushPath(IAVLNode node) {
 		
-		IAVLNode node = this.root;
-		while (node.getRight().isRealNode()) {
-			node = node.getRight();
+		if (node.getParent() != null) {
+			pushPath(node.getParent());
 		}
-		return node;
+		pushDown(node);
 	}
 	
-	private IAVLNode findMin() {
+	/**
+	 * public void setLazyDelete(boolean lazy, double compactRatio)
+	 *
+	 * In lazy delete mode, delete only marks the node as deleted (a tombstone)
+	 * and fixes size and sum on the path to the root, without rotations.
+	 * While the tombstones are more than compactRatio of all the nodes in the tree,
+	 * every insert and delete also unlinks up to COMPACT_STEP of them, oldest first,
+	 * so no single operation pays for the whole clean up.
+	 * Turning the mode off compacts the tree, see compact().
+	 */
+	public void setLazyDelete(boolean lazy, double compactRatio) {
 		
-		IAVLNode node = this.root;
-		while (node.getLeft().isRealNode()) {
-			node = node.getLeft();
+		if (compactRatio <= 0 || compactRatio >= 1) {
+			throw new IllegalArgumentException("compactRatio must be in (0, 1): " + compactRatio);
+		}
+		this.lazyDelete = lazy;
+		this.compactRatio = compactRatio;
+		if (!lazy) {
+			compact();
 		}
-		return node;
 	}
-
+	
 	/**
-	* public String min()
-    *
-    * Returns the info of the item with the smallest key in the tree,
-    * or null if the tree is empty
-    */
-	public String min() {
+	 * public void compact()
+	 *
+	 * Removes all the tombstones at once by rebuilding the tree from its live items,
+	 * in O(n). Lazy deletes never call it on their own, except when no live item
+	 * is left; they unlink the tombstones a few at a time instead.
+	 */
+	public void compact() {
 		
-		if(empty()) {
-			return null;
+		purgeCount = 0;
+		if (tombstones == 0) {
+			return;
 		}
-		return min.getValue();
+		releaseSubtree(this.root);
+		rebuildLive();
 	}
 	
-	public int minKey() {
+	// rebuilds the tree from its live items, with new nodes of the current kind
+	private void rebuildLive() {
 		
-		if(empty()) {
-			return -1;
-		}
-		return min.getKey();
+		int[] keys = keysToArray();
+		Object[] infos = new Object[size()];
+		inOrderStored(this.root, infos, 0); // moved as they are, not decoded
+		int[] values = valuesToArray();
+		tombstones = 0;
+		purgeCount = 0;
+		rebuild(keys, infos, values);
 	}
 	
-	public IAVLNode minNode(){
+	/**
+	 * replaces the content of the tree by the given items
+	 * @param keys sorted keys
+	 * @param infos infos of the keys, in the same order
+	 * @param values values of the keys, in the same order
+	 */
+	private void rebuild(int[] keys, Object[] infos, int[] values) {
 		
-		if(empty()) {
-			return null;
+		if (keys.length == 0) {
+			this.root = new AVLNode(-1, null);
+			this.min = this.root;
+			this.max = this.root;
+			return;
 		}
-		return min;
+		this.root = buildBalanced(keys, infos, values, 0, keys.length - 1, null);
+		this.min = findMin();
+		this.max = findMax();
 	}
-
+	
 	/**
-	 * public String max()
-	 *
-	 * Returns the info of the item with the largest key in the tree,
-	 * or null if the tree is empty
+	 * builds a perfectly balanced subtree from keys[lo..hi]
+	 * @return the root of the subtree
 	 */
-	public String max(){
+	private IAVLNode buildBalanced(int[] keys, Object[] infos, int[] values, int lo, int hi, IAVLNode parent) {
 		
-		if(empty()) {
-			return null;
+		int mid = (lo + hi) >>> 1;
+		AVLNode node = obtainNode(keys[mid], null);
+		node.info = infos[mid]; // a String or a value of the store
+		node.setNodeValue(values[mid]);
+		node.setParent(parent);
+		if (lo < mid) {
+			node.setLeft(buildBalanced(keys, infos, values, lo, mid - 1, node));
 		}
-		return max.getValue();
+		if (mid < hi) {
+			node.setRight(buildBalanced(keys, infos, values, mid + 1, hi, node));
+		}
+		node.setSubtreeSize(node.getLeft().getSubtreeSize() + node.getRight().getSubtreeSize() + 1);
+		node.setSum(node.getLeft().getSum() + node.getRight().getSum() + values[mid]);
+		rehash(node);
+		node.setHeight(policy.buildRank(node));
+		return node;
 	}
-
-	public int maxKey(){
+	
+	/**
+	 * lazy delete - marks the node of k as deleted
+	 * @return 0, or -1 if k is not in the tree
+	 */
+	private int markDeleted(int k) {
 		
-		if(empty()) {
+		IAVLNode node = searchForDelete(this.root, k);
+		if (node.getKey() != k || isDeleted(node)) {
 			return -1;
 		}
-		return max.getKey();
+		int value = ((AVLNode) node).getNodeValue();
+		((AVLNode) node).setDeleted(true);
+		dropInfo(node);
+		tombstones++;
+		for (IAVLNode x = node; x != null; x = x.getParent()) {
+			x.setSubtreeSize(x.getSubtreeSize() - 1);
+			x.setSum(x.getSum() - value);
+			rehash(x);
+		}
+		if (size() == 0) {
+			compact(); // the tree must not keep only tombstones
+			return 0;
+		}
+		if (min == node) {
+			min = selectRec(this.root, 1);
+		}
+		else if (max == node) {
+			max = selectRec(this.root, size());
+		}
+		if (purgeCount == purgeKeys.length) {
+			int[] grown = new int[purgeKeys.length * 2];
+			for (int j = 0; j < purgeCount; j++) {
+				grown[j] = purgeKeys[(purgeHead + j) % purgeKeys.length];
+			}
+			purgeKeys = grown;
+			purgeHead = 0;
+		}
+		purgeKeys[(purgeHead + purgeCount++) % purgeKeys.length] = k;
+		return purgeTombstones();
 	}
 	
-	public IAVLNode maxNode(){
+	/**
+	 * incremental compaction: while the tombstones are more than compactRatio of the nodes,
+	 * unlinks up to COMPACT_STEP of them, oldest first. A key that was revived
+	 * or already unlinked since it was marked is skipped.
+	 * @return number of rebalancing operations
+	 */
+	private int purgeTombstones() {
 		
-		if(empty()) {
-			return null;
+		int cnt = 0;
+		int unlinked = 0;
+		for (int tries = 0; tries < 2 * COMPACT_STEP && unlinked < COMPACT_STEP && purgeCount > 0
+				&& tombstones > compactRatio * (size() + tombstones); tries++) {
+			int k = purgeKeys[purgeHead];
+			purgeHead = (purgeHead + 1) % purgeKeys.length;
+			purgeCount--;
+			IAVLNode node = searchForDelete(this.root, k);
+			if (node.getKey() == k && isDeleted(node)) {
+				tombstones--;
+				cnt += unlinkAndRebalance(k);
+				unlinked++;
+			}
 		}
-		return max;
+		if (tombstones == 0) {
+			purgeCount = 0;
+		}
+		return cnt;
 	}
-  /**
-   * public int[] keysToArray()
-   *
-   * Returns a sorted array which contains all keys in the tree,
-   * or an empty array if the tree is empty.
-   */
-	public int[] keysToArray(){
+	
+	private void revive(IAVLNode node, String info) {
 		
-		if (this.empty()) {
-			int[] result = new int[0];
-			return result;
+		((AVLNode) node).setDeleted(false);
+		storeInfo(node, info);
+		((AVLNode) node).setNodeValue(node.getKey());
+		tombstones--;
+		for (IAVLNode x = node; x != null; x = x.getParent()) {
+			x.setSubtreeSize(x.getSubtreeSize() + 1);
+			x.setSum(x.getSum() + node.getKey());
+			rehash(x);
 		}
-		int[] arr = new int[this.size()];
-		inOrderKeys(this.root, arr, 0);
+		if (node.getKey() < min.getKey()) {
+			min = node;
+		}
+		if (node.getKey() > max.getKey()) {
+			max = node;
+		}
+	}
+	
+	private static boolean isDeleted(IAVLNode node) {
+		return node instanceof AVLNode && ((AVLNode) node).isDeleted();
+	}
+	
+	// 1 for a live node, 0 for a tombstone
+	private int liveCount(IAVLNode node) {
+		return (tombstones == 0 || !isDeleted(node)) ? 1 : 0;
+	}
+	
+	// the node's value for a live node, 0 for a tombstone
+	private int liveValue(IAVLNode node) {
+		return (tombstones == 0 || !isDeleted(node)) ? ((AVLNode) node).getNodeValue() : 0;
+	}
+	
+	// applies the node's pending range update to its children
+	private static void pushDown(IAVLNode node) {
 		
-		return arr;              
+		if (node instanceof RangeNode) {
+			((RangeNode) node).pushDown();
+		}
 	}
+	
 	/**
-	 * in order function
-	 * @return sorted array with all the keys in the tree
+	 * delete: a node with two children is replaced by its successor node,
+	 * which is relinked with the node's rank, so nodes held by callers keep their keys.
+	 * Otherwise the node, which has at most one child, is unlinked.
+	 * The policy then repairs the ranks from the lowest changed node up.
+	 * @return number of rotations, or -1 if k is not in the tree
 	 */
-	private int inOrderKeys(IAVLNode node, int[] arr, int i) {
+	private int unlinkAndRebalance(int k) {
 		
-		if (node.getKey() != -1) {
-			i = inOrderKeys(node.getLeft(), arr, i);
-			arr[i++] = node.getKey();
-			i = inOrderKeys(node.getRight(), arr, i);
+		IAVLNode node = searchForDelete(this.root, k);
+		if (node.getKey() != k) {
+			return -1;
 		}
-		return i;
+		dropInfo(node);
+		IAVLNode parent;
+		IAVLNode child;
+		if (node.getLeft().isRealNode() && node.getRight().isRealNode()) {
+			// getSuccessor pushed the range tags down its path, so the successor can move up
+			IAVLNode successor = getSuccessor(node);
+			child = successor.getRight();
+			if (successor.getParent() == node) {
+				parent = successor;
+			}
+			else {
+				parent = successor.getParent();
+				parent.setLeft(child);
+				if (child.isRealNode()) {
+					child.setParent(parent);
+				}
+				successor.setRight(node.getRight());
+				node.getRight().setParent(successor);
+			}
+			successor.setLeft(node.getLeft());
+			node.getLeft().setParent(successor);
+			successor.setHeight(node.getHeight());
+			replace(node, successor);
+			updateAugmentation(parent);
+		}
+		else {
+			parent = node.getParent();
+			child = node.getLeft().isRealNode() ? node.getLeft() : node.getRight();
+			if (parent == null && !child.isRealNode()) {
+				rebuild(new int[0], new String[0], new int[0]);
+				release(node);
+				return 0;
+			}
+			replace(node, child);
+			if (parent != null) {
+				updateAugmentation(parent);
+			}
+		}
+		int cnt = parent == null ? 0 : policy.rebalanceDelete(this, parent, child);
+		if (this.min == node) {
+			this.min = findMin();
+		}
+		if (this.max == node) {
+			this.max = findMax();
+		}
+		release(node);
+		return cnt;
 	}
-
+	
 	/**
-	 * public String[] infoToArray()
+	 * public void setNodePool(int capacity)
 	 *
-	 * Returns an array which contains all info in the tree,
-	 * sorted by their respective keys,
-	 * or an empty array if the tree is empty.
+	 * Keeps up to capacity removed nodes on a free list, and builds
+	 * new nodes from it before allocating, so steady insert/delete churn
+	 * does not allocate. 0 (the default) turns the pool off.
+	 * Nodes are recycled by delete, by sliding window eviction and by compaction.
 	 */
-	public String[] infoToArray(){
+	public void setNodePool(int capacity) {
 		
-		if (this.empty()) {
-			String[] result = new String[0];
-			return result;
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
 		}
-		
-		String[] arr = new String[this.size()];
-		inOrderInfo(this.root, arr, 0);
-		return arr;
+		this.pool = Arrays.copyOf(pool, capacity);
+		this.pooled = Math.min(pooled, capacity);
 	}
+	
 	/**
-	 * in order function
-	 * @param node
-	 * @return sorted array with all the node's info of the tree
+	 * public ChangeFeed setChangeFeed(int capacity)
+	 *
+	 * Makes insert and delete (and sliding window eviction) append every
+	 * change of the tree's items to a ring buffer of the given capacity,
+	 * and returns it for subscribers to read from. 0 turns the feed off
+	 * and returns null.
+	 * Range updates are not in the feed; they change values, not items.
 	 */
-	private int inOrderInfo(IAVLNode node, String[] arr, int i) {
+	public ChangeFeed setChangeFeed(int capacity) {
 		
-		if (node.getKey() != -1) {
-			i = inOrderInfo(node.getLeft(), arr, i);
-			arr[i++] = node.getValue();
-			i = inOrderInfo(node.getRight(), arr, i);
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
 		}
-		return i;
+		this.changes = capacity == 0 ? null : new ChangeFeed(capacity);
+		return this.changes;
 	}
-
-	/**
-	 * public int size()
-	 *
-	 * Returns the number of nodes in the tree.
-	 *
-	 * precondition: none
-	 * postcondition: none
-    */
-	public int size()
-	{
-		return this.root.getSubtreeSize();
+	
+	public ChangeFeed getChangeFeed() {
+		return this.changes;
 	}
-   
+	
 	/**
-	 * public int getRoot()
-	 *
-	 * Returns the root AVL node, or null if the tree is empty
+	 * public void setValueStore(ValueStore store)
 	 *
-	 * precondition: none
-	 * postcondition: none
+	 * Keeps the infos in store: repeated infos share one String and long
+	 * ones are kept off heap as UTF-8, decoded when they are read
+	 * (search, select, min, max, infoToArray). null keeps them as they are given.
+	 * The infos already in the tree are moved to the new store, O(n).
 	 */
-	public IAVLNode getRoot()
-	{
-		if (empty()) {
-			return null;
+	public void setValueStore(ValueStore store) {
+		
+		ValueStore old = this.valueStore;
+		this.valueStore = null;
+		restoreInfos(this.root, old, store);
+		this.valueStore = store;
+	}
+	
+	private void restoreInfos(IAVLNode node, ValueStore from, ValueStore to) {
+		
+		if (node.isRealNode()) {
+			restoreInfos(node.getLeft(), from, to);
+			AVLNode real = (AVLNode) node;
+			if (real.info != null) {
+				String info = real.getValue();
+				if (from != null) {
+					from.drop(real.info);
+				}
+				real.info = to == null ? info : to.store(info);
+			}
+			restoreInfos(node.getRight(), from, to);
 		}
-		return this.root;
 	}
+	
 	/**
-	 * public string select(int i)
-	 *
-	 * Returns the value of the i'th smallest key (return null if tree is empty)
-	 * Example 1: select(1) returns the value of the node with minimal key 
-	 * Example 2: select(size()) returns the value of the node with maximal key 
-	 * Example 3: select(2) returns the value 2nd smallest minimal node, i.e the value of the node minimal node's successor 	
+	 * public Profiler setProfiler(int sampleEvery)
 	 *
-	 * precondition: size() >= i > 0
-	 * postcondition: none
-	 */   
-	public String select(int i)
-	{
-		if (empty() || i > this.size() || i < 1) {
-			return null;
+	 * Starts counting the operations and rotations of the tree, and measuring
+	 * the descent of every sampleEvery'th keyed operation (one more descent
+	 * for the sampled ones only), and returns the profiler for its report.
+	 * 0 turns profiling off and returns null.
+	 */
+	public Profiler setProfiler(int sampleEvery) {
+		
+		if (sampleEvery < 0) {
+			throw new IllegalArgumentException("sampleEvery must not be negative: " + sampleEvery);
 		}
-		IAVLNode result = selectRec(this.root, i);
-		return result.getValue();
-	}	
+		this.profiler = sampleEvery == 0 ? null : new Profiler(sampleEvery, policy);
+		return this.profiler;
+	}
 	
-	private IAVLNode selectRec(IAVLNode node, int i) {
+	public Profiler getProfiler() {
+		return this.profiler;
+	}
+	
+	// counts a keyed operation; a sampled one also measures the descent to k
+	private void profile(int op, int k) {
 		
-		int nodeRank = node.getLeft().getSubtreeSize() + 1;
-		if (i == nodeRank) {
-			return node;
-		}
-		else if (i < nodeRank) {
-			return selectRec(node.getLeft(), i);
+		if (profiler.count(op, k, !empty() && k > max.getKey())) {
+			int depth = 0;
+			IAVLNode node = this.root;
+			while (node.isRealNode() && node.getKey() != k) {
+				depth++;
+				node = k < node.getKey() ? node.getLeft() : node.getRight();
+			}
+			profiler.recordDepth(depth + 1, size());
 		}
-		else {
-			return selectRec(node.getRight(), i - nodeRank);
+	}
+	
+	// sets the info of a node that is in the tree, through the store
+	private void storeInfo(IAVLNode node, String info) {
+		((AVLNode) node).info = valueStore == null ? info : valueStore.store(info);
+	}
+	
+	// clears the info of a node that leaves the tree (or becomes a tombstone)
+	private void dropInfo(IAVLNode node) {
+		
+		if (valueStore != null) {
+			valueStore.drop(((AVLNode) node).info);
 		}
+		((AVLNode) node).info = null;
 	}
-	/**
-	 * public int less(int i)
-	 *
-	 * Returns the sum of all keys which are less or equal to i
-	 * i is not neccessarily a key in the tree 	
-	 *
-	 * precondition: none
-	 * postcondition: none
-	 */   
 	
-	public int less(int i) {
+	// copies the off-heap infos still in the tree to new slabs, so the old ones can be freed
+	private void compactValues() {
 		
-		int sum = 0;
-		if (i < min.getKey() || empty()) {
-			return sum;
+		valueStore.startCompaction();
+		relocateInfos(this.root);
+	}
+	
+	private void relocateInfos(IAVLNode node) {
+		
+		if (node.isRealNode()) {
+			relocateInfos(node.getLeft());
+			if (((AVLNode) node).info instanceof ValueStore.SlabValue) {
+				valueStore.relocate((ValueStore.SlabValue) ((AVLNode) node).info);
+			}
+			relocateInfos(node.getRight());
 		}
+	}
+	
+	// a node from the free list, or a new one
+	private AVLNode obtainNode(int k, String info) {
 		
-		IAVLNode node = searchForLess(this.root, i);
-		if (node.getKey() <= i) {
-			sum = node.getLeft().getSum() + node.getKey(); 
+		if (pooled == 0) {
+			return merkle ? new MerkleNode(k, info, virtualLeaf) : ranged ? new RangeNode(k, info, virtualLeaf) : new AVLNode(k, info, virtualLeaf);
 		}
-		else {
-			node = getPredeccesssor(node);
-			sum = node.getLeft().getSum() + node.getKey();
+		AVLNode node = pool[--pooled];
+		pool[pooled] = null;
+		node.reset(k, info, virtualLeaf);
+		return node;
+	}
+	
+	// puts a node that is no longer in the tree on the free list, if it has room
+	private void release(IAVLNode node) {
+		
+		if (pooled < pool.length && node instanceof AVLNode && node.isRealNode()) {
+			pool[pooled++] = (AVLNode) node;
 		}
-		while (node != root) {
-			if (node == node.getParent().getRight()) {
-				sum += (node.getParent().getLeft().getSum() + node.getParent().getKey());
-			}
-			node = node.getParent();
-		}	
-		return sum;
 	}
 	
-	private IAVLNode searchForLess(IAVLNode node, int k) {
+	private void releaseSubtree(IAVLNode node) {
 		
-		IAVLNode result;
-		if (k == node.getKey()) {
-			return node;
+		if (pooled < pool.length && node.isRealNode()) {
+			releaseSubtree(node.getLeft());
+			releaseSubtree(node.getRight());
+			release(node);
 		}
-		else if (!node.isRealNode()) {
-			return node.getParent();
+	}
+	
+	/**
+	 * rotates node above its parent. Only the two nodes change their
+	 * size and sum, the subtree as a whole keeps them. Ranks are left to the policy.
+	 */
+	private void rotateUp(IAVLNode node) {
+		
+		IAVLNode parent = node.getParent();
+		if (profiler != null) {
+			profiler.rotated(parent.getLeft() == node ? Profiler.LL : Profiler.RR);
 		}
-		else if (k < node.getKey()) {
-			if (!node.getLeft().isRealNode()) {
-				return node;
+		pushDown(parent);
+		pushDown(node);
+		IAVLNode grand = parent.getParent();
+		if (parent.getLeft() == node) {
+			IAVLNode inner = node.getRight();
+			parent.setLeft(inner);
+			if (inner.isRealNode()) {
+				inner.setParent(parent);
 			}
-			result = searchForLess(node.getLeft(), k);
+			node.setRight(parent);
 		}
 		else {
-			if (!node.getRight().isRealNode()) {
-				return node;
+			IAVLNode inner = node.getLeft();
+			parent.setRight(inner);
+			if (inner.isRealNode()) {
+				inner.setParent(parent);
 			}
-			result = searchForLess(node.getRight(), k);
+			node.setLeft(parent);
 		}
-		return result;
+		parent.setParent(node);
+		node.setParent(grand);
+		if (grand == null) {
+			this.root = node;
+		}
+		else if (grand.getLeft() == parent) {
+			grand.setLeft(node);
+		}
+		else {
+			grand.setRight(node);
+		}
+		node.setSubtreeSize(parent.getSubtreeSize());
+		node.setSum(parent.getSum());
+		parent.setSubtreeSize(parent.getLeft().getSubtreeSize() + parent.getRight().getSubtreeSize() + liveCount(parent));
+		parent.setSum(parent.getLeft().getSum() + parent.getRight().getSum() + liveValue(parent));
+		rehash(parent);
+		rehash(node);
 	}
 	
-	private IAVLNode getPredeccesssor(IAVLNode node) {
+	// puts by in the place of node under node's parent, or at the root
+	private void replace(IAVLNode node, IAVLNode by) {
 		
-		IAVLNode predeccesssor = node;
-		if (node.getParent() != null && node.getParent().isRealNode()) {
-			if(node.getParent().getKey() < node.getKey()) {
-				return node.getParent();
-			}
-			else if (node.getParent().isRealNode()) {
-				while (node.getParent().getLeft() == node) {
-					node = node.getParent();
-				}
-				predeccesssor = node.getParent();
-			}
+		IAVLNode parent = node.getParent();
+		if (parent == null) {
+			this.root = by;
+		}
+		else if (parent.getLeft() == node) {
+			parent.setLeft(by);
 		}
 		else {
-			node = node.getLeft();
-			while (node.getRight().isRealNode()) {
-				node = node.getRight();	
-			}
-			predeccesssor = node;
+			parent.setRight(by);
 		}
+		if (by.isRealNode()) {
+			by.setParent(parent);
+		}
+	}
+	
+	// recomputes size and sum from node up to the root
+	private void updateAugmentation(IAVLNode node) {
 		
-		return predeccesssor;
+		while (node != null) {
+			node.setSubtreeSize(node.getLeft().getSubtreeSize() + node.getRight().getSubtreeSize() + liveCount(node));
+			node.setSum(node.getLeft().getSum() + node.getRight().getSum() + liveValue(node));
+			rehash(node);
+			node = node.getParent();
+		}
 	}
 	
-	private IAVLNode getSuccessor(IAVLNode node) {
+	private IAVLNode searchForDelete(IAVLNode node, int k) {
 		
-		IAVLNode successorNode;
-		if (node.getRight().isRealNode()) {
-			successorNode = node.getRight();
-			while(successorNode.getLeft().isRealNode()) {
-				successorNode = successorNode.getLeft(); 
-			}
+		IAVLNode result;
+		pushDown(node);
+		if (node.getKey() == k || !node.isRealNode()) {
+			return node;
+		}
+		else if (k < node.getKey()) {
+			result = searchForDelete(node.getLeft(), k);
 		}
 		else {
-			successorNode = node;
-			while (successorNode.getParent() != null && successorNode.getParent().getKey() < successorNode.getKey()) { //going up-left
-				successorNode = successorNode.getParent();
-			}
-			if (successorNode.getParent().getKey() > node.getKey()) { //going right one step, if possible
-				successorNode = successorNode.getParent();
-			}
-			else {
-				successorNode = node; 
-			}
+			result = searchForDelete(node.getRight(), k);
 		}
-		return successorNode;
+		return result;
 	}
-
-
-	/**
-	* public interface IAVLNode
-	* ! Do not delete or modify this - otherwise all tests will fail !
-	*/
-	public interface IAVLNode
-	{	
-		public int getKey(); //returns node's key (for virtuval node return -1)
-		public String getValue(); //returns node's value [info] (for virtuval node return null)
-		public void setLeft(IAVLNode node); //sets left child
-		public IAVLNode getLeft(); //returns left child (if there is no left child return null)
-		public void setRight(IAVLNode node); //sets right child
-		public IAVLNode getRight(); //returns right child (if there is no right child return null)
-		public void setParent(IAVLNode node); //sets parent
-		public IAVLNode getParent(); //returns the parent (if there is no parent return null)
-		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node
-		public void setSubtreeSize(int size); // sets the number of real nodes in this node's subtree
-		public int getSubtreeSize(); // Returns the number of real nodes in this node's subtree (Should be implemented in O(1))
-		public void setHeight(int height); // sets the height of the node
-		public int getHeight(); // Returns the height of the node (-1 for virtual nodes)
+	
+	private IAVLNode findMax() {
 		
-		public void setSum(int k);
-		public int getSum();
+		IAVLNode node = this.root;
+		while (node.getRight().isRealNode()) {
+			node = node.getRight();
+		}
+		return node;
+	}
+	
+	private IAVLNode findMin() {
+		
+		IAVLNode node = this.root;
+		while (node.getLeft().isRealNode()) {
+			node = node.getLeft();
+		}
+		return node;
 	}
 
 	/**
-	 * public class AVLNode
-	 *
-	 * If you wish to implement classes other than AVLTree
-	 * (for example AVLNode), do it in this file, not in 
-	 * another file.
-	 * This class can and must be modified.
-	 * (It must implement IAVLNode)
-	 */
-	public class AVLNode implements IAVLNode{
+	* public String min()
+    *
+    * Returns the info of the item with the smallest key in the tree,
+    * or null if the tree is empty
+    */
+	public String min() {
 		
-		private IAVLNode parent;
-		private IAVLNode right;
-		private IAVLNode left;
-		private int key;
-		private String info;
-		private int height;
-		private int size;
-		private int sum;
+		if(empty()) {
+			return null;
+		}
+		return min.getValue();
+	}
+	
+	public int minKey() {
 		
+		if(empty()) {
+			return -1;
+		}
+		return min.getKey();
+	}
+	
+	public IAVLNode minNode(){
+		
+		if(empty()) {
+			return null;
+		}
+		return min;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String max(){
+		
+		if(empty()) {
+			return null;
+		}
+		return max.getValue();
+	}
+
+	public int maxKey(){
+		
+		if(empty()) {
+			return -1;
+		}
+		return max.getKey();
+	}
+	
+	public IAVLNode maxNode(){
+		
+		if(empty()) {
+			return null;
+		}
+		return max;
+	}
+  /**
+   * public int[] keysToArray()
+   *
+   * Returns a sorted array which contains all keys in the tree,
+   * or an empty array if the tree is empty.
+   */
+	public int[] keysToArray(){
+		
+		if (this.empty()) {
+			int[] result = new int[0];
+			return result;
+		}
+		int[] arr = new int[this.size()];
+		inOrderKeys(this.root, arr, 0);
+		
+		return arr;              
+	}
+	/**
+	 * in order function
+	 * @return sorted array with all the keys in the tree
+	 */
+	private int inOrderKeys(IAVLNode node, int[] arr, int i) {
+		
+		if (node.getKey() != -1) {
+			i = inOrderKeys(node.getLeft(), arr, i);
+			if (!isDeleted(node)) {
+				arr[i++] = node.getKey();
+			}
+			i = inOrderKeys(node.getRight(), arr, i);
+		}
+		return i;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray(){
+		
+		if (this.empty()) {
+			String[] result = new String[0];
+			return result;
+		}
+		
+		String[] arr = new String[this.size()];
+		inOrderInfo(this.root, arr, 0);
+		return arr;
+	}
+	/**
+	 * in order function
+	 * @param node
+	 * @return sorted array with all the node's info of the tree
+	 */
+	private int inOrderInfo(IAVLNode node, String[] arr, int i) {
+		
+		if (node.getKey() != -1) {
+			i = inOrderInfo(node.getLeft(), arr, i);
+			if (!isDeleted(node)) {
+				arr[i++] = node.getValue();
+			}
+			i = inOrderInfo(node.getRight(), arr, i);
+		}
+		return i;
+	}
+
+	/**
+	 * public int[] keysToArrayParallel()
+	 *
+	 * keysToArray on the common fork-join pool: subtrees are split off at
+	 * their roots and every task writes its keys to its own slice of the array,
+	 * starting at the rank the subtree sizes give.
+	 */
+	public int[] keysToArrayParallel() {
+		
+		int[] arr = new int[this.size()];
+		if (!this.empty()) {
+			ForkJoinPool.commonPool().invoke(new ExportTask(this, this.root, 0, arr, null));
+		}
+		return arr;
+	}
+	
+	/**
+	 * public String[] infoToArrayParallel()
+	 *
+	 * infoToArray on the common fork-join pool, split like keysToArrayParallel
+	 */
+	public String[] infoToArrayParallel() {
+		
+		String[] arr = new String[this.size()];
+		if (!this.empty()) {
+			ForkJoinPool.commonPool().invoke(new ExportTask(this, this.root, 0, null, arr));
+		}
+		return arr;
+	}
+	
+	/**
+	 * public static AVLTree fromSorted(BalancePolicy policy, int[] keys, String[] infos)
+	 *
+	 * Builds a balanced tree of the given items in O(n) on the common fork-join pool:
+	 * the middle item is the root, and the two halves are built in parallel.
+	 * keys must be sorted and distinct.
+	 */
+	public static AVLTree fromSorted(BalancePolicy policy, int[] keys, String[] infos) {
+		
+		if (keys.length != infos.length) {
+			throw new IllegalArgumentException("keys and infos differ in length");
+		}
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j] <= keys[j - 1]) {
+				throw new IllegalArgumentException("keys are not sorted and distinct at index " + j);
+			}
+		}
+		AVLTree tree = new AVLTree(policy);
+		if (keys.length > 0) {
+			tree.root = ForkJoinPool.commonPool().invoke(new BuildTask(tree, keys, infos, 0, keys.length - 1));
+			tree.root.setParent(null);
+			tree.min = tree.findMin();
+			tree.max = tree.findMax();
+		}
+		return tree;
+	}
+	
+	public static AVLTree fromSorted(int[] keys, String[] infos) {
+		return fromSorted(AVL, keys, infos);
+	}
+
+	// the infos of the live nodes sorted by their keys, as they are kept in the nodes
+	private int inOrderStored(IAVLNode node, Object[] arr, int i) {
+		
+		if (node.isRealNode()) {
+			i = inOrderStored(node.getLeft(), arr, i);
+			if (!isDeleted(node)) {
+				arr[i++] = ((AVLNode) node).info;
+			}
+			i = inOrderStored(node.getRight(), arr, i);
+		}
+		return i;
+	}
+	
+	// values of the live nodes sorted by their keys, pushing pending range updates on the way
+	private int[] valuesToArray() {
+		
+		int[] arr = new int[this.size()];
+		inOrderValues(this.root, arr, 0);
+		return arr;
+	}
+	
+	private int inOrderValues(IAVLNode node, int[] arr, int i) {
+		
+		if (node.getKey() != -1) {
+			pushDown(node);
+			i = inOrderValues(node.getLeft(), arr, i);
+			if (!isDeleted(node)) {
+				arr[i++] = ((AVLNode) node).getNodeValue();
+			}
+			i = inOrderValues(node.getRight(), arr, i);
+		}
+		return i;
+	}
+	
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * precondition: none
+	 * postcondition: none
+    */
+	public int size()
+	{
+		return this.root.getSubtreeSize();
+	}
+   
+	/**
+	 * public int getRoot()
+	 *
+	 * Returns the root AVL node, or null if the tree is empty
+	 *
+	 * precondition: none
+	 * postcondition: none
+	 */
+	public IAVLNode getRoot()
+	{
+		if (empty()) {
+			return null;
+		}
+		return this.root;
+	}
+	/**
+	 * public string select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (return null if tree is empty)
+	 * Example 1: select(1) returns the value of the node with minimal key 
+	 * Example 2: select(size()) returns the value of the node with maximal key 
+	 * Example 3: select(2) returns the value 2nd smallest minimal node, i.e the value of the node minimal node's successor 	
+	 *
+	 * precondition: size() >= i > 0
+	 * postcondition: none
+	 */   
+	public String select(int i)
+	{
+		if (profiler != null) {
+			profiler.ops[Profiler.SELECT]++;
+		}
+		if (empty() || i > this.size() || i < 1) {
+			return null;
+		}
+		IAVLNode result = selectRec(this.root, i);
+		return result.getValue();
+	}	
+	
+	private IAVLNode selectRec(IAVLNode node, int i) {
+		
+		int leftSize = node.getLeft().getSubtreeSize();
+		int nodeRank = leftSize + liveCount(node); // a tombstone takes no rank
+		if (i <= leftSize) {
+			return selectRec(node.getLeft(), i);
+		}
+		else if (i == nodeRank) {
+			return node;
+		}
+		else {
+			return selectRec(node.getRight(), i - nodeRank);
+		}
+	}
+	/**
+	 * public int less(int i)
+	 *
+	 * Returns the sum of all keys which are less or equal to i
+	 * (of their values, if range updates were made, see rangeAdd)
+	 * i is not neccessarily a key in the tree 	
+	 * After range updates, less pushes the pending updates down its path,
+	 * so it writes to the nodes and must not run alongside other calls on the tree.
+	 *
+	 * precondition: none
+	 * postcondition: none
+	 */   
+	
+	public int less(int i) {
+		
+		if (profiler != null) {
+			profile(Profiler.LESS, i);
+		}
+		int sum = 0;
+		if (i < min.getKey() || empty()) {
+			return sum;
+		}
+		
+		IAVLNode node = searchForLess(this.root, i);
+		if (node.getKey() <= i) {
+			sum = node.getLeft().getSum() + liveValue(node); 
+		}
+		else {
+			node = getPredeccesssor(node);
+			sum = node.getLeft().getSum() + liveValue(node);
+		}
+		while (node != root) {
+			if (node == node.getParent().getRight()) {
+				sum += (node.getParent().getLeft().getSum() + liveValue(node.getParent()));
+			}
+			node = node.getParent();
+		}	
+		return sum;
+	}
+	
+	private IAVLNode searchForLess(IAVLNode node, int k) {
+		
+		IAVLNode result;
+		pushDown(node);
+		if (k == node.getKey()) {
+			return node;
+		}
+		else if (!node.isRealNode()) {
+			return node.getParent();
+		}
+		else if (k < node.getKey()) {
+			if (!node.getLeft().isRealNode()) {
+				return node;
+			}
+			result = searchForLess(node.getLeft(), k);
+		}
+		else {
+			if (!node.getRight().isRealNode()) {
+				return node;
+			}
+			result = searchForLess(node.getRight(), k);
+		}
+		return result;
+	}
+	
+	private IAVLNode getPredeccesssor(IAVLNode node) {
+		
+		IAVLNode predeccesssor = node;
+		if (node.getParent() != null && node.getParent().isRealNode()) {
+			if(node.getParent().getKey() < node.getKey()) {
+				return node.getParent();
+			}
+			else if (node.getParent().isRealNode()) {
+				while (node.getParent().getLeft() == node) {
+					node = node.getParent();
+				}
+				predeccesssor = node.getParent();
+			}
+		}
+		else {
+			node = node.getLeft();
+			pushDown(node);
+			while (node.getRight().isRealNode()) {
+				node = node.getRight();	
+				pushDown(node);
+			}
+			predeccesssor = node;
+		}
+		
+		return predeccesssor;
+	}
+	
+	private IAVLNode getSuccessor(IAVLNode node) {
+		
+		IAVLNode successorNode;
+		if (node.getRight().isRealNode()) {
+			successorNode = node.getRight();
+			pushDown(successorNode);
+			while(successorNode.getLeft().isRealNode()) {
+				successorNode = successorNode.getLeft(); 
+				pushDown(successorNode);
+			}
+		}
+		else {
+			successorNode = node;
+			while (successorNode.getParent() != null && successorNode.getParent().getKey() < successorNode.getKey()) { //going up-left
+				successorNode = successorNode.getParent();
+			}
+			if (successorNode.getParent().getKey() > node.getKey()) { //going right one step, if possible
+				successorNode = successorNode.getParent();
+			}
+			else {
+				successorNode = node; 
+			}
+		}
+		return successorNode;
+	}
+
+
+	/**
+	 * public int floorKey(int k)
+	 *
+	 * Returns the largest key which is less or equal to k, or -1 if there is none
+	 */
+	public int floorKey(int k) {
+		
+		int r = rank(k, true);
+		return r == 0 ? -1 : selectRec(this.root, r).getKey();
+	}
+	
+	/**
+	 * public int lowerKey(int k)
+	 *
+	 * Returns the largest key which is strictly less than k, or -1 if there is none
+	 */
+	public int lowerKey(int k) {
+		
+		int r = rank(k, false);
+		return r == 0 ? -1 : selectRec(this.root, r).getKey();
+	}
+	
+	/**
+	 * public int ceilingKey(int k)
+	 *
+	 * Returns the smallest key which is greater or equal to k, or -1 if there is none
+	 */
+	public int ceilingKey(int k) {
+		
+		int r = rank(k, false);
+		return r == size() ? -1 : selectRec(this.root, r + 1).getKey();
+	}
+	
+	/**
+	 * public int higherKey(int k)
+	 *
+	 * Returns the smallest key which is strictly greater than k, or -1 if there is none
+	 */
+	public int higherKey(int k) {
+		
+		int r = rank(k, true);
+		return r == size() ? -1 : selectRec(this.root, r + 1).getKey();
+	}
+	
+	/**
+	 * public int[] kNearest(int k, int n)
+	 *
+	 * Returns the (at most) n keys closest to k, nearest first,
+	 * ties going to the smaller key.
+	 * One descent finds the rank of k, then only the n keys on each side of it are walked.
+	 */
+	public int[] kNearest(int k, int n) {
+		
+		n = Math.max(0, Math.min(n, size()));
+		int r = rank(k, true);
+		int from = Math.max(1, r - n + 1);
+		int to = Math.min(size(), r + n);
+		int[] window = keysInRankRange(from, to);
+		int[] result = new int[n];
+		int below = r - from; // index of the floor of k in window
+		int above = below + 1;
+		for (int i = 0; i < n; i++) {
+			if (above >= window.length || (below >= 0 && (long) k - window[below] <= (long) window[above] - k)) {
+				result[i] = window[below--];
+			}
+			else {
+				result[i] = window[above++];
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * public int[] topK(int n)
+	 *
+	 * Returns the (at most) n largest keys, largest first
+	 */
+	public int[] topK(int n) {
+		
+		n = Math.max(0, Math.min(n, size()));
+		int[] window = keysInRankRange(size() - n + 1, size());
+		int[] result = new int[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = window[n - 1 - i];
+		}
+		return result;
+	}
+	
+	/**
+	 * @param k
+	 * @param inclusive whether k itself is counted
+	 * @return number of keys less than k (or equal to k, if inclusive)
+	 */
+	private int rank(int k, boolean inclusive) {
+		
+		int r = 0;
+		IAVLNode node = this.root;
+		while (node.isRealNode()) {
+			if (node.getKey() < k || (inclusive && node.getKey() == k)) {
+				r += node.getLeft().getSubtreeSize() + liveCount(node);
+				node = node.getRight();
+			}
+			else {
+				node = node.getLeft();
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * @return sorted array of the keys with ranks from..to (1-based, inclusive)
+	 */
+	private int[] keysInRankRange(int from, int to) {
+		
+		if (from > to) {
+			return new int[0];
+		}
+		int[] arr = new int[to - from + 1];
+		inOrderKeysByRank(this.root, from, to, 0, arr, 0);
+		return arr;
+	}
+	
+	/**
+	 * in order walk that skips the subtrees with no rank in from..to
+	 * @param offset number of keys before node's subtree
+	 */
+	private int inOrderKeysByRank(IAVLNode node, int from, int to, int offset, int[] arr, int i) {
+		
+		if (!node.isRealNode() || offset >= to || offset + node.getSubtreeSize() < from) {
+			return i;
+		}
+		i = inOrderKeysByRank(node.getLeft(), from, to, offset, arr, i);
+		int nodeRank = offset + node.getLeft().getSubtreeSize() + liveCount(node);
+		if (!isDeleted(node) && nodeRank >= from && nodeRank <= to) {
+			arr[i++] = node.getKey();
+		}
+		return inOrderKeysByRank(node.getRight(), from, to, nodeRank, arr, i);
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * Returns the number of keys which are less or equal to k
+	 * (the position of k in keysToArray(), counting from 1, if k is in the tree)
+	 */
+	public int rank(int k) {
+		return rank(k, true);
+	}
+	
+	/**
+	 * public int quantile(double q)
+	 *
+	 * Returns the key at the q quantile (nearest rank: the key of rank ceil(q * size())),
+	 * or -1 if the tree is empty
+	 * precondition: 0 <= q <= 1
+	 */
+	public int quantile(double q) {
+		
+		if (empty()) {
+			return -1;
+		}
+		return selectRec(this.root, quantileRank(q)).getKey();
+	}
+	
+	/**
+	 * public int median()
+	 *
+	 * Returns the key at the 0.5 quantile, or -1 if the tree is empty
+	 */
+	public int median() {
+		return quantile(0.5);
+	}
+	
+	/**
+	 * public int[] quantiles(double... qs)
+	 *
+	 * Returns the keys at all the given quantiles (see quantile), in the order of qs.
+	 * The ranks are looked up in one traversal: the shared top of their
+	 * paths is visited once, and the group of ranks is split at every node.
+	 */
+	public int[] quantiles(double... qs) {
+		
+		int[] result = new int[qs.length];
+		if (empty()) {
+			Arrays.fill(result, -1);
+			return result;
+		}
+		// sort the ranks, remembering where every answer goes
+		long[] packed = new long[qs.length];
+		for (int n = 0; n < qs.length; n++) {
+			packed[n] = ((long) quantileRank(qs[n]) << 32) | n;
+		}
+		Arrays.sort(packed);
+		int[] ranks = new int[qs.length];
+		int[] slots = new int[qs.length];
+		for (int n = 0; n < qs.length; n++) {
+			ranks[n] = (int) (packed[n] >>> 32);
+			slots[n] = (int) packed[n];
+		}
+		selectMany(this.root, ranks, slots, 0, qs.length, 0, result);
+		return result;
+	}
+	
+	/**
+	 * public int quantileApprox(double q, double eps)
+	 *
+	 * Returns a key whose rank is within eps * size() of the q quantile,
+	 * or -1 if the tree is empty.
+	 * The descent stops at the first subtree that holds the target rank and
+	 * has at most eps * size() keys, so a large eps visits only the top levels.
+	 */
+	public int quantileApprox(double q, double eps) {
+		
+		if (empty()) {
+			return -1;
+		}
+		int i = quantileRank(q);
+		int slack = (int) (eps * size());
+		IAVLNode node = this.root;
+		while (true) {
+			int leftSize = node.getLeft().getSubtreeSize();
+			int nodeRank = leftSize + liveCount(node);
+			if ((node.getSubtreeSize() <= slack && !isDeleted(node)) || (i == nodeRank && !isDeleted(node))) {
+				return node.getKey();
+			}
+			if (i <= leftSize) {
+				node = node.getLeft();
+			}
+			else {
+				i -= nodeRank;
+				node = node.getRight();
+			}
+		}
+	}
+	
+	private int quantileRank(double q) {
+		
+		if (!(q >= 0 && q <= 1)) {
+			throw new IllegalArgumentException("quantile must be in [0, 1]: " + q);
+		}
+		return Math.max(1, Math.min(size(), (int) Math.ceil(q * size())));
+	}
+	
+	/**
+	 * select for the sorted ranks[lo..hi) in node's subtree
+	 * @param offset number of keys before node's subtree
+	 * @param slots slots[n] is the index in result of the answer for ranks[n]
+	 */
+	private void selectMany(IAVLNode node, int[] ranks, int[] slots, int lo, int hi, int offset, int[] result) {
+		
+		while (lo < hi) {
+			int leftEnd = offset + node.getLeft().getSubtreeSize();
+			int nodeRank = leftEnd + liveCount(node);
+			int mid = lo;
+			while (mid < hi && ranks[mid] <= leftEnd) {
+				mid++;
+			}
+			if (lo < mid) {
+				selectMany(node.getLeft(), ranks, slots, lo, mid, offset, result);
+			}
+			while (mid < hi && ranks[mid] == nodeRank && !isDeleted(node)) {
+				result[slots[mid++]] = node.getKey();
+			}
+			// continue in the right subtree without recursion
+			lo = mid;
+			offset = nodeRank;
+			node = node.getRight();
+		}
+	}
+
+	/**
+	 * public void setMerkle(boolean on)
+	 *
+	 * Makes every node keep a hash of the items (key and info) in its subtree,
+	 * maintained with size and sum, so that rangeHash and diff can compare
+	 * trees without reading their items. The hash of a set of items is the sum
+	 * of the hashes of the items, so it does not depend on the shape of the tree:
+	 * trees with the same items have the same hashes, whatever their policy.
+	 * The hash lives in MerkleNode, so a tree without hashes does not pay for it:
+	 * switching rebuilds the tree with the other kind of node (and drops the
+	 * tombstones and the free list), O(n).
+	 * The hash catches replicas that drifted apart by accident, not forged ones.
+	 */
+	public void setMerkle(boolean on) {
+		
+		if (on == merkle) {
+			return;
+		}
+		this.merkle = on;
+		Arrays.fill(pool, null); // pooled nodes are of the other kind
+		pooled = 0;
+		rebuildLive();
+	}
+	
+	// recomputes the hash of node from its children
+	private void rehash(IAVLNode node) {
+		
+		if (merkle && node.isRealNode()) {
+			((MerkleNode) node).setHash(hashOf(node.getLeft()) + hashOf(node.getRight()) + liveHash(node));
+		}
+	}
+	
+	private static long hashOf(IAVLNode node) {
+		return node.isRealNode() ? ((MerkleNode) node).getHash() : 0;
+	}
+	
+	// the hash of the node's item, 0 for a tombstone
+	private long liveHash(IAVLNode node) {
+		return (tombstones == 0 || !isDeleted(node)) ? itemHash(node.getKey(), ((AVLNode) node).info) : 0;
+	}
+	
+	// info is a String or a value of the store, whose hash is that of its String
+	private static long itemHash(int key, Object info) {
+		
+		long h = key * 0x9E3779B97F4A7C15L + (info == null ? 0x632BE59BD9B4E019L : info.hashCode());
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+	
+	/**
+	 * public long rangeHash(int lo, int hi)
+	 *
+	 * Returns the hash of the items with lo <= key <= hi, in O(log n).
+	 * Trees that hold the same items in the range have the same hash,
+	 * so replicas in other processes can be compared range by range.
+	 * The tree must keep hashes (setMerkle).
+	 */
+	public long rangeHash(int lo, int hi) {
+		
+		if (!merkle) {
+			throw new IllegalStateException("the tree does not keep hashes");
+		}
+		if (lo > hi) {
+			return 0;
+		}
+		return hashRank(hi, true) - hashRank(lo, false);
+	}
+	
+	// the hash of the items with key < k (or <= k when inclusive), like rank
+	private long hashRank(int k, boolean inclusive) {
+		
+		long h = 0;
+		IAVLNode node = this.root;
+		while (node.isRealNode()) {
+			if (node.getKey() < k || (inclusive && node.getKey() == k)) {
+				h += hashOf(node.getLeft()) + liveHash(node);
+				node = node.getRight();
+			}
+			else {
+				node = node.getLeft();
+			}
+		}
+		return h;
+	}
+	
+	/**
+	 * public int[] diff(AVLTree other)
+	 *
+	 * Returns the sorted keys whose items differ between this tree and other
+	 * (in one tree only, or with a different info). Key ranges with equal
+	 * hashes are skipped and a differing range is split at the median key of
+	 * its larger side, so d differences cost O(d log n) range hashes.
+	 * Both trees must keep hashes (setMerkle).
+	 */
+	public int[] diff(AVLTree other) {
+		
+		List<Integer> keys = new ArrayList<>();
+		diffRange(other, Integer.MIN_VALUE, Integer.MAX_VALUE, keys);
+		int[] arr = new int[keys.size()];
+		for (int j = 0; j < arr.length; j++) {
+			arr[j] = keys.get(j);
+		}
+		return arr;
+	}
+	
+	private void diffRange(AVLTree other, int lo, int hi, List<Integer> keys) {
+		
+		if (rangeHash(lo, hi) == other.rangeHash(lo, hi)) {
+			return;
+		}
+		int from = rank(lo, false) + 1, to = rank(hi, true);
+		int otherFrom = other.rank(lo, false) + 1, otherTo = other.rank(hi, true);
+		int count = to - from + 1, otherCount = otherTo - otherFrom + 1;
+		if (count <= 4 && otherCount <= 4) {
+			diffItems(other, from, to, otherFrom, otherTo, keys);
+			return;
+		}
+		// at least one item of the larger side on each side of the split
+		int mid = count >= otherCount
+				? selectRec(this.root, from + count / 2 - 1).getKey()
+				: other.selectRec(other.root, otherFrom + otherCount / 2 - 1).getKey();
+		diffRange(other, lo, mid, keys);
+		diffRange(other, mid + 1, hi, keys);
+	}
+	
+	// merges the two runs of items by key, keeping the keys that differ
+	private void diffItems(AVLTree other, int from, int to, int otherFrom, int otherTo, List<Integer> keys) {
+		
+		while (from <= to || otherFrom <= otherTo) {
+			IAVLNode a = from <= to ? selectRec(this.root, from) : null;
+			IAVLNode b = otherFrom <= otherTo ? other.selectRec(other.root, otherFrom) : null;
+			if (b == null || (a != null && a.getKey() < b.getKey())) {
+				keys.add(a.getKey());
+				from++;
+			}
+			else if (a == null || b.getKey() < a.getKey()) {
+				keys.add(b.getKey());
+				otherFrom++;
+			}
+			else {
+				if (!Objects.equals(a.getValue(), b.getValue())) {
+					keys.add(a.getKey());
+				}
+				from++;
+				otherFrom++;
+			}
+		}
+	}
+	
+	/**
+	 * public FrozenAVLTree freeze()
+	 *
+	 * Returns a read-only copy of the tree packed into flat arrays
+	 * in Eytzinger (breadth first) order, for trees that are built once
+	 * and then queried many times.
+	 * Later changes to this tree are not seen by the copy.
+	 */
+	public FrozenAVLTree freeze() {
+		
+		return new FrozenAVLTree(keysToArray(), infoToArray(), valuesToArray());
+	}
+
+
+	/**
+	* public interface IAVLNode
+	* ! Do not delete or modify this - otherwise all tests will fail !
+	*/
+	public interface IAVLNode
+	{	
+		public int getKey(); //returns node's key (for virtuval node return -1)
+		public String getValue(); //returns node's value [info] (for virtuval node return null)
+		public void setLeft(IAVLNode node); //sets left child
+		public IAVLNode getLeft(); //returns left child (if there is no left child return null)
+		public void setRight(IAVLNode node); //sets right child
+		public IAVLNode getRight(); //returns right child (if there is no right child return null)
+		public void setParent(IAVLNode node); //sets parent
+		public IAVLNode getParent(); //returns the parent (if there is no parent return null)
+		public boolean isRealNode(); // Returns True if this is a non-virtual AVL node
+		public void setSubtreeSize(int size); // sets the number of real nodes in this node's subtree
+		public int getSubtreeSize(); // Returns the number of real nodes in this node's subtree (Should be implemented in O(1))
+		public void setHeight(int height); // sets the height of the node
+		public int getHeight(); // Returns the height of the node (-1 for virtual nodes)
+		
+		public void setSum(int k);
+		public int getSum();
+	}
+
+	/**
+	 * public class AVLNode
+	 *
+	 * If you wish to implement classes other than AVLTree
+	 * (for example AVLNode), do it in this file, not in 
+	 * another file.
+	 * This class can and must be modified.
+	 * (It must implement IAVLNode)
+	 *
+	 * The class is static, so a node holds no reference to its tree,
+	 * and the height (at most about 1.44 log n) is kept in a byte.
+	 * A virtual node has key -1 and no children, so the getters
+	 * return the fields without checking isRealNode().
+	 * The value of a plain node is its key; values changed by range updates
+	 * are kept in RangeNode.
+	 */
+	public static class AVLNode implements IAVLNode{
+		
+		private IAVLNode parent;
+		private IAVLNode right;
+		private IAVLNode left;
+		private Object info; // a String, or a ValueStore.SlabValue kept off heap
+		private int key;
+		private int size;
+		private int sum;
+		private byte height;
+		private boolean deleted; // tombstone of a lazy delete
+		
+		
+		/**
+		 * AVLNode constructor - create a node with key and info
+		 * (a real node gets its own virtual children)
+		 * @param key
+		 * @param info
+		 */
+		public AVLNode(int key, String info) {
+			this(key, info, key == -1 ? null : new AVLNode(-1, null));
+		}
+		
+		/**
+		 * AVLNode constructor - create a node with key and info
+		 * whose children are the given virtual node
+		 * @param key
+		 * @param info
+		 * @param virtualLeaf
+		 */
+		public AVLNode(int key, String info, IAVLNode virtualLeaf) {
+			
+			if (key != -1) {
+				this.key = key;
+				this.info = info;
+				this.right = virtualLeaf;
+				this.left = virtualLeaf;
+				this.height = 0;
+				this.size = 1;
+				this.sum = key;
+			}
+			else {
+				this.key = -1;
+				this.info = null;
+				this.height = -1;
+				this.size = 0;
+				this.sum = 0;
+			}
+		}
+		
+		/**
+		 * makes a node taken from the free list a new leaf with key and info
+		 * (the node must be real)
+		 */
+		public void reset(int key, String info, IAVLNode virtualLeaf)
+		{
+			this.key = key;
+			this.info = info;
+			this.parent = null;
+			this.right = virtualLeaf;
+			this.left = virtualLeaf;
+			this.height = 0;
+			this.size = 1;
+			this.sum = key;
+			this.deleted = false;
+		}
+		
+		public int getKey()
+		{
+			return key;
+		}
+		
+		public String getValue()
+		{
+			return info instanceof ValueStore.SlabValue ? ((ValueStore.SlabValue) info).decode() : (String) info;
+		}
+		
+		public void setLeft(IAVLNode node)
+		{
+			left = node;
+		}
+		
+		public IAVLNode getLeft()
+		{
+			return left;
+		}
+		
+		public void setRight(IAVLNode node)
+		{
+			right = node;
+		}
+		
+		public IAVLNode getRight()
+		{
+			return right;
+		}
+		
+		public void setParent(IAVLNode node)
+		{
+			parent = node;
+		}
+		
+		public IAVLNode getParent()
+		{
+			return parent; 
+		}
+		
+		// Returns True if this is a non-virtual AVL node
+		public boolean isRealNode()
+		{
+			return key != -1;
+		}
+		
+		public void setSubtreeSize(int size)
+		{
+			this.size = size;
+		}
+		
+		public int getSubtreeSize()
+		{
+			return size;
+		}
+		
+		public void setHeight(int height)
+		{
+			this.height = (byte) height;
+		}
+		
+		public int getHeight()
+		{
+			return height; 
+		}
+		
+		public void setSum(int k) 
+		{
+			this.sum = k;
+		}
+		
+		public int getSum() 
+		{
+			return this.sum;
+		}
+		
+		
+		public boolean isDeleted()
+		{
+			return deleted;
+		}
+		
+		public void setDeleted(boolean deleted)
+		{
+			this.deleted = deleted;
+		}
+		
+		// the value summed by less; the key, as a plain node has no range updates
+		public int getNodeValue()
+		{
+			return key;
+		}
+		
+		public void setNodeValue(int value)
+		{
+			if (value != key) {
+				throw new UnsupportedOperationException("a plain node's value is its key; range updates need a RangeNode");
+			}
+		}
+		
+	}
+	
+	/**
+	 * public static class RangeNode
+	 *
+	 * A node of a tree that had range updates (see rangeAdd): its own value,
+	 * and the update pending for its children. A tree switches to RangeNodes at
+	 * its first range update, so plain trees do not pay for these fields.
+	 */
+	public static class RangeNode extends AVLNode {
+		
+		private int value; // summed by less, starts as the key
+		private int scaleTag = 1, shiftTag = 0; // range update pending for the children: v -> scaleTag * v + shiftTag
+		
+		public RangeNode(int key, String info, IAVLNode virtualLeaf) {
+			
+			super(key, info, virtualLeaf);
+			this.value = key;
+		}
+		
+		@Override
+		public void reset(int key, String info, IAVLNode virtualLeaf)
+		{
+			super.reset(key, info, virtualLeaf);
+			this.value = key;
+			this.scaleTag = 1;
+			this.shiftTag = 0;
+		}
+		
+		@Override
+		public int getNodeValue()
+		{
+			return value;
+		}
+		
+		@Override
+		public void setNodeValue(int value)
+		{
+			this.value = value;
+		}
+		
+		/**
+		 * applies v -> scale * v + shift to every value in this subtree:
+		 * this node's value and sum now, the children through the pending tag
+		 */
+		public void apply(int scale, int shift)
+		{
+			value = scale * value + shift;
+			setSum(scale * getSum() + shift * getSubtreeSize());
+			scaleTag = scale * scaleTag;
+			shiftTag = scale * shiftTag + shift;
+		}
+		
+		// applies the pending tag to the children and clears it
+		public void pushDown()
+		{
+			if (scaleTag == 1 && shiftTag == 0) {
+				return;
+			}
+			if (getLeft().isRealNode()) {
+				((RangeNode) getLeft()).apply(scaleTag, shiftTag);
+			}
+			if (getRight().isRealNode()) {
+				((RangeNode) getRight()).apply(scaleTag, shiftTag);
+			}
+			scaleTag = 1;
+			shiftTag = 0;
+		}
+	}
+	
+	/**
+	 * public static class MerkleNode
+	 *
+	 * A node of a tree that keeps hashes (see setMerkle): the sum of the
+	 * item hashes of its live subtree. Plain nodes leave it out.
+	 * It is a RangeNode, so one kind of node serves a tree with hashes
+	 * whether or not it had range updates.
+	 */
+	public static class MerkleNode extends RangeNode {
+		
+		private long hash;
+		
+		public MerkleNode(int key, String info, IAVLNode virtualLeaf) {
+			super(key, info, virtualLeaf);
+		}
+		
+		@Override
+		public void reset(int key, String info, IAVLNode virtualLeaf)
+		{
+			super.reset(key, info, virtualLeaf);
+			this.hash = 0;
+		}
+		
+		public long getHash()
+		{
+			return this.hash;
+		}
+		
+		public void setHash(long hash)
+		{
+			this.hash = hash;
+		}
+	}
+	
+	/**
+	 * public interface BalancePolicy
+	 *
+	 * The balancing strategy of a tree. AVL, WAVL and red-black trees are all
+	 * rank-balanced trees: each node has an integer rank (kept in the height field,
+	 * -1 for virtual nodes) and each policy has its own rule on the rank
+	 * differences between parents and children, and its own repair steps.
+	 * The policies rotate with AVLTree.rotateUp, which keeps size and sum,
+	 * so the whole public API works with every policy.
+	 */
+	public interface BalancePolicy
+	{
+		public int rebalanceInsert(AVLTree tree, IAVLNode node); // node is the new leaf; returns number of rotations
+		public int rebalanceDelete(AVLTree tree, IAVLNode parent, IAVLNode child); // child took the place of the removed node under parent; returns number of rotations
+		public int buildRank(IAVLNode node); // rank of a node of a balanced tree built bottom up (its children already have ranks)
+	}
+	
+	/**
+	 * AVL: the rank is the height, and the heights of siblings differ by at most 1.
+	 * Insert and removeMin use this policy, delete keeps its own AVL repair
+	 * that runs while splicing the successor.
+	 */
+	private static class AVLPolicy implements BalancePolicy {
+		
+		public int rebalanceInsert(AVLTree tree, IAVLNode node) {
+			
+			tree.updateHeight(node);
+			return tree.checkBalance(node.getParent());
+		}
+		
+		public int rebalanceDelete(AVLTree tree, IAVLNode parent, IAVLNode child) {
+			
+			int cnt = 0;
+			IAVLNode x = parent;
+			while (x != null) {
+				x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
+				int BF = x.getLeft().getHeight() - x.getRight().getHeight();
+				if (BF > 1 || BF < -1) {
+					// x moved down, the rotation already fixed everything above the new subtree root
+					cnt += tree.balanceAfterInsert(x, BF);
+					x = x.getParent();
+				}
+				x = x.getParent();
+			}
+			return cnt;
+		}
+		
+		public int buildRank(IAVLNode node) {
+			return Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1;
+		}
+	}
+	
+	/**
+	 * WAVL (weak AVL): every rank difference is 1 or 2 and every leaf has rank 0.
+	 * Inserts repair like AVL; deletes do at most 2 rotations
+	 * (Haeupler, Sen, Tarjan - Rank-balanced trees).
+	 */
+	private static class WAVLPolicy implements BalancePolicy {
+		
+		public int rebalanceInsert(AVLTree tree, IAVLNode node) {
+			return promoteAfterInsert(tree, node);
+		}
+		
+		public int rebalanceDelete(AVLTree tree, IAVLNode parent, IAVLNode child) {
+			
+			IAVLNode y = child;
+			IAVLNode p = parent;
+			// a 2,2 leaf is not allowed
+			if (!p.getLeft().isRealNode() && !p.getRight().isRealNode() && p.getHeight() == 1) {
+				p.setHeight(0);
+				y = p;
+				p = p.getParent();
+			}
+			while (p != null && p.getHeight() - y.getHeight() == 3) {
+				boolean left = p.getLeft() == y;
+				IAVLNode s = left ? p.getRight() : p.getLeft();
+				if (p.getHeight() - s.getHeight() == 2) {
+					p.setHeight(p.getHeight() - 1);
+				}
+				else {
+					IAVLNode t = left ? s.getLeft() : s.getRight(); // inner child of the sibling
+					IAVLNode u = left ? s.getRight() : s.getLeft(); // outer child of the sibling
+					if (s.getHeight() - t.getHeight() == 2 && s.getHeight() - u.getHeight() == 2) {
+						p.setHeight(p.getHeight() - 1);
+						s.setHeight(s.getHeight() - 1);
+					}
+					else if (s.getHeight() - u.getHeight() == 1) {
+						tree.rotateUp(s);
+						s.setHeight(s.getHeight() + 1);
+						p.setHeight(p.getHeight() - 1);
+						if (!p.getLeft().isRealNode() && !p.getRight().isRealNode()) {
+							p.setHeight(0);
+						}
+						return 1;
+					}
+					else {
+						tree.rotateUp(t);
+						tree.rotateUp(t);
+						t.setHeight(t.getHeight() + 2);
+						s.setHeight(s.getHeight() - 1);
+						p.setHeight(p.getHeight() - 2);
+						return 2;
+					}
+				}
+				y = p;
+				p = p.getParent();
+			}
+			return 0;
+		}
+		
+		public int buildRank(IAVLNode node) {
+			return Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 1;
+		}
+	}
+	
+	/**
+	 * Red-black: every rank difference is 0 (a red node) or 1 (a black node),
+	 * and the child of a 0-child is never a 0-child (no red node has a red child).
+	 * The rank is the black height.
+	 */
+	private static class RedBlackPolicy implements BalancePolicy {
+		
+		public int rebalanceInsert(AVLTree tree, IAVLNode node) {
+			
+			IAVLNode x = node;
+			IAVLNode p = x.getParent();
+			while (p != null && p.getParent() != null && p.getHeight() == x.getHeight()
+					&& p.getParent().getHeight() == p.getHeight()) {
+				IAVLNode g = p.getParent();
+				IAVLNode s = g.getLeft() == p ? g.getRight() : g.getLeft();
+				if (g.getHeight() == s.getHeight()) {
+					// red uncle: recolor by promoting the grandparent
+					g.setHeight(g.getHeight() + 1);
+					x = g;
+					p = g.getParent();
+					continue;
+				}
+				if ((g.getLeft() == p) == (p.getLeft() == x)) {
+					tree.rotateUp(p);
+					return 1;
+				}
+				tree.rotateUp(x);
+				tree.rotateUp(x);
+				return 2;
+			}
+			return 0;
+		}
+		
+		public int rebalanceDelete(AVLTree tree, IAVLNode parent, IAVLNode child) {
+			
+			int cnt = 0;
+			IAVLNode y = child;
+			IAVLNode p = parent;
+			while (p != null && p.getHeight() - y.getHeight() == 2) {
+				boolean left = p.getLeft() == y;
+				IAVLNode s = left ? p.getRight() : p.getLeft();
+				if (p.getHeight() == s.getHeight()) {
+					// red sibling: rotate it up, y gets a black sibling
+					tree.rotateUp(s);
+					cnt++;
+					continue;
+				}
+				IAVLNode t = left ? s.getLeft() : s.getRight(); // inner child of the sibling
+				IAVLNode u = left ? s.getRight() : s.getLeft(); // outer child of the sibling
+				if (s.getHeight() == u.getHeight()) {
+					tree.rotateUp(s);
+					s.setHeight(s.getHeight() + 1);
+					p.setHeight(p.getHeight() - 1);
+					return cnt + 1;
+				}
+				if (s.getHeight() == t.getHeight()) {
+					tree.rotateUp(t);
+					tree.rotateUp(t);
+					t.setHeight(t.getHeight() + 1);
+					p.setHeight(p.getHeight() - 1);
+					return cnt + 2;
+				}
+				// black sibling with black children: recolor by demoting the parent
+				boolean red = p.getParent() != null && p.getParent().getHeight() == p.getHeight();
+				p.setHeight(p.getHeight() - 1);
+				if (red) {
+					return cnt;
+				}
+				y = p;
+				p = p.getParent();
+			}
+			return cnt;
+		}
+		
+		public int buildRank(IAVLNode node) {
+			// the perfect part of a balanced subtree is black, the extra last level is red
+			return 31 - Integer.numberOfLeadingZeros(node.getSubtreeSize() + 1) - 1;
+		}
+	}
+	
+	/**
+	 * insert repair shared by AVL and WAVL in rank form: promote while the new node's
+	 * path has a 0-child, then one single or double rotation
+	 * @return number of rotations
+	 */
+	private static int promoteAfterInsert(AVLTree tree, IAVLNode node) {
+		
+		IAVLNode x = node;
+		IAVLNode p = x.getParent();
+		while (p != null && p.getHeight() == x.getHeight()) {
+			IAVLNode s = p.getLeft() == x ? p.getRight() : p.getLeft();
+			if (p.getHeight() - s.getHeight() == 1) {
+				p.setHeight(p.getHeight() + 1);
+				x = p;
+				p = p.getParent();
+				continue;
+			}
+			IAVLNode y = p.getLeft() == x ? x.getRight() : x.getLeft(); // inner child of x
+			if (x.getHeight() - y.getHeight() == 2) {
+				tree.rotateUp(x);
+				p.setHeight(p.getHeight() - 1);
+				return 1;
+			}
+			tree.rotateUp(y);
+			tree.rotateUp(y);
+			y.setHeight(y.getHeight() + 1);
+			x.setHeight(x.getHeight() - 1);
+			p.setHeight(p.getHeight() - 1);
+			return 2;
+		}
+		return 0;
+	}
+	
+	/**
+	 * writes the keys or the infos of a subtree to arr starting at offset,
+	 * forking the big subtrees
+	 */
+	private static class ExportTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private static final int GRAIN = 1 << 13; // smaller subtrees are walked by one task
+		
+		private final AVLTree tree;
+		private final IAVLNode node;
+		private final int offset;
+		private final int[] keys;
+		private final String[] infos;
+		
+		ExportTask(AVLTree tree, IAVLNode node, int offset, int[] keys, String[] infos) {
+			
+			this.tree = tree;
+			this.node = node;
+			this.offset = offset;
+			this.keys = keys;
+			this.infos = infos;
+		}
+		
+		protected void compute() {
+			
+			if (node.getSubtreeSize() < GRAIN) {
+				if (keys != null) {
+					tree.inOrderKeys(node, keys, offset);
+				}
+				else {
+					tree.inOrderInfo(node, infos, offset);
+				}
+				return;
+			}
+			int mid = offset + node.getLeft().getSubtreeSize();
+			int live = isDeleted(node) ? 0 : 1;
+			if (live == 1) {
+				if (keys != null) {
+					keys[mid] = node.getKey();
+				}
+				else {
+					infos[mid] = node.getValue();
+				}
+			}
+			invokeAll(new ExportTask(tree, node.getLeft(), offset, keys, infos),
+					new ExportTask(tree, node.getRight(), mid + live, keys, infos));
+		}
+	}
+	
+	/**
+	 * builds a balanced subtree of keys[lo..hi], forking the two halves of the big ones
+	 */
+	private static class BuildTask extends RecursiveTask<IAVLNode> {
+		
+		private static final long serialVersionUID = 1L;
+		private static final int GRAIN = 1 << 13; // smaller subtrees are built by one task
+		
+		private final AVLTree tree;
+		private final int[] keys;
+		private final String[] infos;
+		private final int lo, hi;
+		
+		BuildTask(AVLTree tree, int[] keys, String[] infos, int lo, int hi) {
+			
+			this.tree = tree;
+			this.keys = keys;
+			this.infos = infos;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		protected IAVLNode compute() {
+			
+			if (hi - lo < GRAIN) {
+				return tree.buildBalanced(keys, infos, keys, lo, hi, null);
+			}
+			int mid = (lo + hi) >>> 1;
+			BuildTask left = new BuildTask(tree, keys, infos, lo, mid - 1);
+			BuildTask right = new BuildTask(tree, keys, infos, mid + 1, hi);
+			left.fork();
+			IAVLNode rightRoot = right.compute();
+			IAVLNode leftRoot = left.join();
+			AVLNode node = new AVLNode(keys[mid], infos[mid], tree.virtualLeaf);
+			node.setLeft(leftRoot);
+			node.setRight(rightRoot);
+			leftRoot.setParent(node);
+			rightRoot.setParent(node);
+			node.setSubtreeSize(leftRoot.getSubtreeSize() + rightRoot.getSubtreeSize() + 1);
+			node.setSum(leftRoot.getSum() + rightRoot.getSum() + keys[mid]);
+			node.setHeight(tree.policy.buildRank(node));
+			return node;
+		}
+	}
+	
+	/**
+	 * public static class ShardedAVLTree
+	 *
+	 * A range partitioned set of K independent AVL trees (shards).
+	 * Every shard owns a contiguous range of keys and is guarded by its own lock,
+	 * so writers working on different ranges do not block each other.
+	 * The size and the sum of keys of every shard are kept in padded counters,
+	 * each written only under its shard's lock, and select and less fold them
+	 * in O(K) to find the right shard before descending only that shard in O(log n).
+	 * When one shard grows much larger than the average, the shard boundaries
+	 * are recomputed and the keys are redistributed.
+	 */
+	public static class ShardedAVLTree {
+		
+		private static final int SKEW_FACTOR = 2; // rebalance when a shard is SKEW_FACTOR times the average
+		private static final int MIN_REBALANCE_SIZE = 64; // don't rebalance tiny shards
+		private static final int STRIDE = 16; // ints per counter slot, so every shard's counters own a cache line
+		private static final VarHandle COUNTER = MethodHandles.arrayElementVarHandle(int[].class);
+		
+		private final ReentrantLock rebalanceLock = new ReentrantLock();
+		private volatile Layout layout;
+		
+		// the shards of one set of boundaries; replaced as a whole by rebalance
+		private static final class Layout {
+			
+			private final int[] bounds; // bounds[j] is the smallest key of shard j (bounds[0] is never used)
+			private final AVLTree[] shards;
+			private final ReentrantLock[] locks;
+			private final int[] counters; // size of shard j at (j + 1) * STRIDE, its sum of keys right after
+			
+			Layout(int[] bounds) {
+				
+				int shardCount = bounds.length;
+				this.bounds = bounds;
+				this.shards = new AVLTree[shardCount];
+				this.locks = new ReentrantLock[shardCount];
+				for (int j = 0; j < shardCount; j++) {
+					this.shards[j] = new AVLTree();
+					this.locks[j] = new ReentrantLock();
+				}
+				this.counters = new int[(shardCount + 2) * STRIDE];
+			}
+			
+			/**
+			 * @param k
+			 * @return index of the shard whose range contains k
+			 */
+			int shardOf(int k) {
+				
+				int lo = 0;
+				int hi = bounds.length - 1;
+				while (lo < hi) {
+					int mid = (lo + hi + 1) >>> 1;
+					if (bounds[mid] <= k) {
+						lo = mid;
+					}
+					else {
+						hi = mid - 1;
+					}
+				}
+				return lo;
+			}
+			
+			int size(int j) {
+				return (int) COUNTER.getAcquire(counters, (j + 1) * STRIDE);
+			}
+			
+			int sum(int j) {
+				return (int) COUNTER.getAcquire(counters, (j + 1) * STRIDE + 1);
+			}
+			
+			// called only with locks[j] held, so a plain read of the old value is enough
+			void add(int j, int sizeDelta, int sumDelta) {
+				
+				int slot = (j + 1) * STRIDE;
+				COUNTER.setRelease(counters, slot, counters[slot] + sizeDelta);
+				COUNTER.setRelease(counters, slot + 1, counters[slot + 1] + sumDelta);
+			}
+			
+			int total() {
+				
+				int total = 0;
+				for (int j = 0; j < shards.length; j++) {
+					total += size(j);
+				}
+				return total;
+			}
+			
+			boolean isSkewed(int shardSize, int total) {
+				return shardSize >= MIN_REBALANCE_SIZE && shardSize > SKEW_FACTOR * (total / shards.length + 1);
+			}
+		}
+		
+		/**
+		 * ShardedAVLTree constructor - create an empty tree with shardCount shards,
+		 * splitting the non-negative keys into equal ranges
+		 * @param shardCount
+		 */
+		public ShardedAVLTree(int shardCount) {
+			
+			if (shardCount < 1) {
+				throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+			}
+			int[] initialBounds = new int[shardCount];
+			long width = ((long) Integer.MAX_VALUE + 1) / shardCount;
+			for (int j = 1; j < shardCount; j++) {
+				initialBounds[j] = (int) (width * j);
+			}
+			this.layout = new Layout(initialBounds);
+		}
+		
+		/**
+		 * Locks shard j of the current layout and returns that layout.
+		 * A rebalance holds every lock of the layout it replaces, so once the lock
+		 * is taken the layout read is still current, or the caller retries.
+		 */
+		private Layout lockShard(int k, int[] shard) {
+			
+			while (true) {
+				Layout current = layout;
+				int j = current.shardOf(k);
+				current.locks[j].lock();
+				if (layout == current) {
+					shard[0] = j;
+					return current;
+				}
+				current.locks[j].unlock();
+			}
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i into the shard owning k.
+		 * returns the number of rebalancing operations done by the shard,
+		 * or -1 if an item with key k already exists.
+		 */
+		public int insert(int k, String i) {
+			
+			int[] shard = new int[1];
+			Layout current = lockShard(k, shard);
+			int j = shard[0];
+			int result;
+			boolean skewed;
+			try {
+				result = current.shards[j].insert(k, i);
+				if (result != -1) {
+					current.add(j, 1, k);
+				}
+				skewed = result != -1 && current.isSkewed(current.shards[j].size(), current.total());
+			}
+			finally {
+				current.locks[j].unlock();
+			}
+			if (skewed) {
+				rebalanceIfSkewed();
+			}
+			return result;
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes an item with key k from the shard owning k, if it is there.
+		 * returns the number of rebalancing operations done by the shard,
+		 * or -1 if an item with key k was not found.
+		 */
+		public int delete(int k) {
+			
+			int[] shard = new int[1];
+			Layout current = lockShard(k, shard);
+			int j = shard[0];
+			try {
+				int result = current.shards[j].delete(k);
+				if (result != -1) {
+					current.add(j, -1, -k);
+				}
+				return result;
+			}
+			finally {
+				current.locks[j].unlock();
+			}
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists, otherwise returns null
+		 */
+		public String search(int k) {
+			
+			int[] shard = new int[1];
+			Layout current = lockShard(k, shard);
+			int j = shard[0];
+			try {
+				return current.shards[j].search(k);
+			}
+			finally {
+				current.locks[j].unlock();
+			}
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * Returns the number of items in all the shards.
+		 */
+		public int size() {
+			return layout.total();
+		}
+		
+		/**
+		 * public String select(int i)
+		 *
+		 * Returns the value of the i'th smallest key over all the shards,
+		 * or null if i is out of range.
+		 * The shard is found by folding the shard sizes,
+		 * then the shard's own select is used.
+		 */
+		public String select(int i) {
+			
+			while (true) {
+				Layout current = layout;
+				int shardCount = current.shards.length;
+				int before = 0;
+				int j = 0;
+				while (j < shardCount && before + current.size(j) < i) {
+					before += current.size(j);
+					j++;
+				}
+				if (i < 1 || j == shardCount) {
+					return null;
+				}
+				current.locks[j].lock();
+				try {
+					// a concurrent writer may have changed the shard since the counters were read
+					if (layout == current && i - before <= current.shards[j].size()) {
+						return current.shards[j].select(i - before);
+					}
+				}
+				finally {
+					current.locks[j].unlock();
+				}
+			}
+		}
+		
+		/**
+		 * public int less(int i)
+		 *
+		 * Returns the sum of all keys which are less or equal to i over all the shards:
+		 * the sums of the shards before the shard owning i (from their counters)
+		 * plus the shard's own less.
+		 */
+		public int less(int i) {
+			
+			int[] shard = new int[1];
+			Layout current = lockShard(i, shard);
+			int j = shard[0];
+			try {
+				int sum = 0;
+				for (int before = 0; before < j; before++) {
+					sum += current.sum(before);
+				}
+				if (!current.shards[j].empty()) {
+					sum += current.shards[j].less(i);
+				}
+				return sum;
+			}
+			finally {
+				current.locks[j].unlock();
+			}
+		}
+		
+		/**
+		 * public void rebalance()
+		 *
+		 * Recomputes the shard boundaries so that every shard holds about
+		 * the same number of keys, and redistributes the keys, whether or not
+		 * any shard is skewed. Inserts call this on their own only when
+		 * a shard grows SKEW_FACTOR times larger than the average.
+		 * Blocks all the other operations while running.
+		 */
+		public void rebalance() {
+			
+			rebalanceLock.lock();
+			try {
+				redistribute();
+			}
+			finally {
+				rebalanceLock.unlock();
+			}
+		}
+		
+		private void rebalanceIfSkewed() {
+			
+			rebalanceLock.lock();
+			try {
+				if (hasSkew(layout)) { // otherwise someone else already rebalanced
+					redistribute();
+				}
+			}
+			finally {
+				rebalanceLock.unlock();
+			}
+		}
+		
+		// called with rebalanceLock held
+		private void redistribute() {
+			
+			Layout old = layout;
+			int shardCount = old.shards.length;
+			for (ReentrantLock lock : old.locks) {
+				lock.lock();
+			}
+			try {
+				int total = 0;
+				for (AVLTree shard : old.shards) {
+					total += shard.size();
+				}
+				int[] keys = new int[total];
+				String[] infos = new String[total];
+				int pos = 0;
+				for (AVLTree shard : old.shards) {
+					System.arraycopy(shard.keysToArray(), 0, keys, pos, shard.size());
+					System.arraycopy(shard.infoToArray(), 0, infos, pos, shard.size());
+					pos += shard.size();
+				}
+				int[] newBounds = new int[shardCount];
+				for (int j = 1; j < shardCount; j++) {
+					newBounds[j] = total == 0 ? old.bounds[j] : keys[(int) ((long) total * j / shardCount)];
+				}
+				Layout next = new Layout(newBounds);
+				// keys are sorted, so every new shard is one run of them, built in O(run)
+				int start = 0;
+				for (int j = 0; j < shardCount; j++) {
+					int end = start;
+					int sum = 0;
+					while (end < total && next.shardOf(keys[end]) == j) {
+						sum += keys[end++];
+					}
+					next.shards[j] = fromSorted(Arrays.copyOfRange(keys, start, end), Arrays.copyOfRange(infos, start, end));
+					next.add(j, end - start, sum);
+					start = end;
+				}
+				layout = next;
+			}
+			finally {
+				for (ReentrantLock lock : old.locks) {
+					lock.unlock();
+				}
+			}
+		}
+		
+		private static boolean hasSkew(Layout current) {
+			
+			int total = current.total();
+			for (int j = 0; j < current.shards.length; j++) {
+				if (current.isSkewed(current.size(j), total)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * public static class DurableAVLTree
+	 *
+	 * An AVL tree whose inserts and deletes are appended to a memory mapped
+	 * write-ahead log, so the tree can be rebuilt after a crash.
+	 * Records are written to the mapped log as plain memory writes. A background
+	 * flusher forces them to disk once syncEvery records are pending, or at most
+	 * FLUSH_INTERVAL_MILLIS after the first one (group commit). Callers that need a
+	 * record on disk wait for durableSequence() to reach its sequence number (sync()).
+	 *
+	 * The log is two mapped segments. When the current one fills up, writes move to
+	 * the other one and the flusher checkpoints the full one: it merges that
+	 * segment's records into the previous snapshot without touching the tree.
+	 * Every record and the snapshot carry a log sequence number (LSN), so recovery
+	 * replays only the contiguous run of records after the snapshot's LSN.
+	 * Stale records left in a reused segment, or a torn tail, end the run.
+	 *
+	 * Log record: op (1 byte), LSN (8), key (4), info length (4, -1 for null), info bytes (UTF-8), CRC32 of the previous fields (4).
+	 * Snapshot: LSN of the last record it holds (8), item count (4), then key (4), info length (4), info bytes for every item in key order.
+	 */
+	public static class DurableAVLTree {
+		
+		private static final byte OP_INSERT = 1;
+		private static final byte OP_DELETE = 2;
+		private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4 + 4;
+		private static final long FLUSH_INTERVAL_MILLIS = 1;
+		private static final String LOG_FILE = "avl.wal";
+		private static final String SNAPSHOT_FILE = "avl.snapshot";
+		private static final Object DELETED = new Object(); // marks a delete in a checkpoint merge
+		
+		private final AVLTree tree = new AVLTree();
+		private final Path dir;
+		private final int logCapacity;
+		private final int syncEvery;
+		private final FileChannel[] logChannels = new FileChannel[2];
+		private final MappedByteBuffer[] logs = new MappedByteBuffer[2];
+		private final Object lock = new Object();
+		private final Thread flusher;
+		
+		// guarded by lock
+		private int current = 0; // segment taking new records
+		private final int[] ends = new int[2]; // write offset of every segment
+		private int sealed = -1; // full segment waiting for its checkpoint, or -1
+		private long lastLsn; // LSN of the last record appended
+		private long durableLsn; // every record up to this LSN is on disk
+		private long requestedLsn; // sync() waits for a force up to this LSN
+		private boolean closed = false;
+		private UncheckedIOException failure; // the flusher's error, rethrown to the callers
+		
+		/**
+		 * DurableAVLTree constructor - opens (or creates) the log and snapshot in dir
+		 * and recovers the tree from them. The recovered tree is written to a new snapshot
+		 * and the log is emptied, so recovery is O(n).
+		 * @param dir directory of the log and the snapshot
+		 * @param logCapacity size of each of the two mapped log segments in bytes
+		 * @param syncEvery number of pending records that makes the flusher force at once, 1 forces every record
+		 */
+		public DurableAVLTree(Path dir, int logCapacity, int syncEvery) throws IOException {
+			
+			if (syncEvery < 1) {
+				throw new IllegalArgumentException("syncEvery must be positive: " + syncEvery);
+			}
+			if (logCapacity < RECORD_OVERHEAD) {
+				throw new IllegalArgumentException("logCapacity too small: " + logCapacity);
+			}
+			this.dir = dir;
+			this.logCapacity = logCapacity;
+			this.syncEvery = syncEvery;
+			Files.createDirectories(dir);
+			long lsn = loadSnapshot();
+			List<LogRecord> records = new ArrayList<>();
+			for (int seg = 0; seg < 2; seg++) {
+				Path file = logFile(seg);
+				if (Files.exists(file)) {
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+						int length = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+						records.addAll(readRecords(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), length));
+					}
+				}
+			}
+			records.sort((a, b) -> Long.compare(a.lsn, b.lsn));
+			for (LogRecord record : records) {
+				if (record.lsn <= lsn) {
+					continue; // already in the snapshot
+				}
+				if (record.lsn != lsn + 1) {
+					break; // a gap: everything after it was never acknowledged as durable
+				}
+				record.applyTo(tree);
+				lsn++;
+			}
+			// start from a clean log, so no stale record can ever follow a new one
+			writeSnapshot(lsn);
+			for (int seg = 0; seg < 2; seg++) {
+				logChannels[seg] = FileChannel.open(logFile(seg), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				logChannels[seg].truncate(0);
+				logChannels[seg].force(true);
+				logs[seg] = logChannels[seg].map(FileChannel.MapMode.READ_WRITE, 0, logCapacity);
+			}
+			syncDirectory();
+			this.lastLsn = lsn;
+			this.durableLsn = lsn;
+			this.requestedLsn = lsn;
+			this.flusher = new Thread(this::flushLoop, "avl-wal-flusher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of k, or null; as AVLTree.search
+		 */
+		public String search(int k) {
+			
+			synchronized (lock) {
+				return tree.search(k);
+			}
+		}
+		
+		/**
+		 * public String select(int i)
+		 *
+		 * returns the info of the i'th smallest key; as AVLTree.select
+		 */
+		public String select(int i) {
+			
+			synchronized (lock) {
+				return tree.select(i);
+			}
+		}
+		
+		/**
+		 * public int less(int i)
+		 *
+		 * returns the sum of the keys up to i; as AVLTree.less
+		 */
+		public int less(int i) {
+			
+			synchronized (lock) {
+				return tree.less(i);
+			}
+		}
+		
+		public int size() {
+			
+			synchronized (lock) {
+				return tree.size();
+			}
+		}
+		
+		public int[] keysToArray() {
+			
+			synchronized (lock) {
+				return tree.keysToArray();
+			}
+		}
+		
+		public String[] infoToArray() {
+			
+			synchronized (lock) {
+				return tree.infoToArray();
+			}
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts into the tree and, if the tree changed, appends the insert to the log.
+		 * Does not wait for the disk: call sync(), or awaitDurable(lastSequence()), for that.
+		 * returns the result of AVLTree.insert
+		 */
+		public int insert(int k, String i) {
+			
+			byte[] bytes = i == null ? null : i.getBytes(StandardCharsets.UTF_8);
+			if (recordLength(bytes) > logCapacity) {
+				throw new IllegalArgumentException("record does not fit in a log segment: " + recordLength(bytes) + " bytes");
+			}
+			synchronized (lock) {
+				checkOpen();
+				int result = tree.insert(k, i);
+				if (result != -1) {
+					append(OP_INSERT, k, bytes);
+				}
+				return result;
+			}
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes from the tree and, if the tree changed, appends the delete to the log.
+		 * Does not wait for the disk, like insert.
+		 * returns the result of AVLTree.delete
+		 */
+		public int delete(int k) {
+			
+			synchronized (lock) {
+				checkOpen();
+				int result = tree.delete(k);
+				if (result != -1) {
+					append(OP_DELETE, k, null);
+				}
+				return result;
+			}
+		}
+		
+		/**
+		 * public long lastSequence()
+		 *
+		 * Returns the LSN of the last record appended to the log.
+		 */
+		public long lastSequence() {
+			
+			synchronized (lock) {
+				return lastLsn;
+			}
+		}
+		
+		/**
+		 * public long durableSequence()
+		 *
+		 * Returns the LSN up to which every record is on disk.
+		 */
+		public long durableSequence() {
+			
+			synchronized (lock) {
+				return durableLsn;
+			}
+		}
+		
+		/**
+		 * public void awaitDurable(long lsn)
+		 *
+		 * Waits until every record up to lsn is on disk, asking the flusher to force now.
+		 */
+		public void awaitDurable(long lsn) {
+			
+			synchronized (lock) {
+				if (lsn > requestedLsn) {
+					requestedLsn = lsn;
+					lock.notifyAll();
+				}
+				while (durableLsn < lsn) {
+					checkFailure();
+					if (closed && !flusher.isAlive()) {
+						throw new IllegalStateException("closed");
+					}
+					await();
+				}
+			}
+		}
+		
+		/**
+		 * public void sync()
+		 *
+		 * waits until all the log records written so far are on disk
+		 */
+		public void sync() {
+			awaitDurable(lastSequence());
+		}
+		
+		/**
+		 * public void checkpoint()
+		 *
+		 * moves the writes to the other log segment and waits until the flusher
+		 * has merged the records written so far into the snapshot
+		 */
+		public void checkpoint() {
+			
+			synchronized (lock) {
+				checkOpen();
+				if (ends[current] > 0) {
+					switchSegment();
+				}
+				while (sealed != -1) {
+					checkFailure();
+					await();
+				}
+			}
+		}
+		
+		/**
+		 * public void close()
+		 *
+		 * forces the log to disk, finishes a pending checkpoint and closes the log
+		 */
+		public void close() throws IOException {
+			
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				lock.notifyAll();
+			}
+			boolean interrupted = false;
+			while (flusher.isAlive()) {
+				try {
+					flusher.join();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			for (FileChannel channel : logChannels) {
+				channel.close();
+			}
+			synchronized (lock) {
+				if (failure != null) {
+					throw failure.getCause();
+				}
+			}
+		}
+		
+		// called with lock held
+		private void append(byte op, int k, byte[] bytes) {
+			
+			int length = recordLength(bytes);
+			if (ends[current] + length > logCapacity) {
+				switchSegment();
+			}
+			MappedByteBuffer log = logs[current];
+			int start = ends[current];
+			long lsn = lastLsn + 1;
+			log.put(start, op);
+			log.putLong(start + 1, lsn);
+			log.putInt(start + 9, k);
+			log.putInt(start + 13, bytes == null ? -1 : bytes.length);
+			if (bytes != null) {
+				log.put(start + 17, bytes);
+			}
+			log.putInt(start + length - 4, crc(log, start, length - 4));
+			ends[current] = start + length;
+			lastLsn = lsn;
+			if (lastLsn - durableLsn == syncEvery) {
+				lock.notifyAll();
+			}
+		}
+		
+		// called with lock held; waits while the other segment is still being checkpointed
+		private void switchSegment() {
+			
+			while (sealed != -1) {
+				checkFailure();
+				await();
+			}
+			sealed = current;
+			current = 1 - current;
+			ends[current] = 0;
+			lock.notifyAll();
+		}
+		
+		// called with lock held
+		private void await() {
+			
+			try {
+				lock.wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for the log", e);
+			}
+		}
+		
+		private void checkOpen() {
+			
+			checkFailure();
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+		}
+		
+		private void checkFailure() {
+			
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		
+		private void flushLoop() {
+			
+			while (true) {
+				long target;
+				int seg;
+				int full;
+				int fullEnd;
+				boolean stop;
+				synchronized (lock) {
+					if (!closed && sealed == -1 && lastLsn - durableLsn < syncEvery && requestedLsn <= durableLsn) {
+						try {
+							lock.wait(FLUSH_INTERVAL_MILLIS);
+						}
+						catch (InterruptedException e) {
+							// only close() stops the flusher
+						}
+					}
+					target = lastLsn;
+					seg = current;
+					full = sealed;
+					fullEnd = full == -1 ? 0 : ends[full];
+					stop = closed;
+				}
+				try {
+					if (target > durableLsn) {
+						if (full != -1) {
+							logs[full].force(0, fullEnd);
+						}
+						logs[seg].force();
+						synchronized (lock) {
+							durableLsn = target;
+							lock.notifyAll();
+						}
+					}
+					if (full != -1) {
+						checkpointSegment(full, fullEnd);
+						synchronized (lock) {
+							sealed = -1;
+							lock.notifyAll();
+						}
+					}
+				}
+				catch (IOException e) {
+					fail(new UncheckedIOException(e));
+					return;
+				}
+				catch (UncheckedIOException e) {
+					fail(e);
+					return;
+				}
+				if (stop) {
+					return;
+				}
+			}
+		}
+		
+		private void fail(UncheckedIOException e) {
+			
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		}
+		
+		/**
+		 * Merges the records of a full segment into the snapshot: both are in key order
+		 * once the segment's last change of every key is sorted, so this is one pass
+		 * over the old snapshot and never reads the tree.
+		 */
+		private void checkpointSegment(int seg, int end) throws IOException {
+			
+			List<LogRecord> records = readRecords(logs[seg], end);
+			if (records.isEmpty()) {
+				return;
+			}
+			TreeMap<Integer, Object> changes = new TreeMap<>();
+			for (LogRecord record : records) {
+				changes.put(record.key, record.op == OP_INSERT ? record.info : DELETED);
+			}
+			Path snapshot = dir.resolve(SNAPSHOT_FILE);
+			Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+			int count = 0;
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeLong(records.get(records.size() - 1).lsn);
+				out.writeInt(0); // item count, written below
+				Iterator<Map.Entry<Integer, Object>> it = changes.entrySet().iterator();
+				Map.Entry<Integer, Object> change = it.hasNext() ? it.next() : null;
+				if (Files.exists(snapshot)) {
+					try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+						in.readLong();
+						int oldCount = in.readInt();
+						for (int n = 0; n < oldCount; n++) {
+							int k = in.readInt();
+							String info = readInfo(in);
+							while (change != null && change.getKey() < k) {
+								count += writeChange(out, change);
+								change = it.hasNext() ? it.next() : null;
+							}
+							if (change != null && change.getKey() == k) {
+								count += writeChange(out, change);
+								change = it.hasNext() ? it.next() : null;
+							}
+							else {
+								out.writeInt(k);
+								writeInfo(out, info);
+								count++;
+							}
+						}
+					}
+				}
+				while (change != null) {
+					count += writeChange(out, change);
+					change = it.hasNext() ? it.next() : null;
+				}
+			}
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				channel.write(ByteBuffer.allocate(4).putInt(0, count), 8);
+			}
+			publishSnapshot(tmp);
+		}
+		
+		private static int writeChange(DataOutputStream out, Map.Entry<Integer, Object> change) throws IOException {
+			
+			if (change.getValue() == DELETED) {
+				return 0;
+			}
+			out.writeInt(change.getKey());
+			writeInfo(out, (String) change.getValue());
+			return 1;
+		}
+		
+		// writes the whole tree as the snapshot of the records up to lsn
+		private void writeSnapshot(long lsn) throws IOException {
+			
+			Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				int[] keys = tree.keysToArray();
+				String[] infos = tree.infoToArray();
+				out.writeLong(lsn);
+				out.writeInt(keys.length);
+				for (int n = 0; n < keys.length; n++) {
+					out.writeInt(keys[n]);
+					writeInfo(out, infos[n]);
+				}
+			}
+			publishSnapshot(tmp);
+		}
+		
+		// forces tmp, renames it over the snapshot and forces the directory, so the rename survives a crash
+		private void publishSnapshot(Path tmp) throws IOException {
+			
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+		}
+		
+		private void syncDirectory() throws IOException {
+			
+			try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+				channel.force(true);
+			}
+		}
+		
+		private Path logFile(int seg) {
+			return dir.resolve(LOG_FILE + "." + seg);
+		}
+		
+		private static int recordLength(byte[] bytes) {
+			return RECORD_OVERHEAD + (bytes == null ? 0 : bytes.length);
+		}
+		
+		private static int crc(ByteBuffer log, int start, int length) {
+			
+			CRC32 crc = new CRC32();
+			crc.update(log.slice(start, length));
+			return (int) crc.getValue();
+		}
+		
+		// reads the run of valid records with consecutive LSNs from the start of a segment,
+		// up to the first empty, torn or corrupt record or the first LSN gap
+		private static List<LogRecord> readRecords(ByteBuffer log, int end) {
+			
+			List<LogRecord> records = new ArrayList<>();
+			int pos = 0;
+			while (pos + RECORD_OVERHEAD <= end) {
+				byte op = log.get(pos);
+				long lsn = log.getLong(pos + 1);
+				int k = log.getInt(pos + 9);
+				int length = log.getInt(pos + 13);
+				if ((op != OP_INSERT && op != OP_DELETE) || length < -1 || length > end - pos - RECORD_OVERHEAD) {
+					break;
+				}
+				int size = RECORD_OVERHEAD + Math.max(length, 0);
+				if (log.getInt(pos + size - 4) != crc(log, pos, size - 4)) {
+					break;
+				}
+				if (!records.isEmpty() && lsn != records.get(records.size() - 1).lsn + 1) {
+					break;
+				}
+				String info = null;
+				if (length >= 0) {
+					byte[] bytes = new byte[length];
+					log.get(pos + 17, bytes);
+					info = new String(bytes, StandardCharsets.UTF_8);
+				}
+				records.add(new LogRecord(op, lsn, k, info));
+				pos += size;
+			}
+			return records;
+		}
+		
+		private static class LogRecord {
+			
+			private final byte op;
+			private final long lsn;
+			private final int key;
+			private final String info;
+			
+			LogRecord(byte op, long lsn, int key, String info) {
+				
+				this.op = op;
+				this.lsn = lsn;
+				this.key = key;
+				this.info = info;
+			}
+			
+			void applyTo(AVLTree tree) {
+				
+				if (op == OP_INSERT) {
+					tree.insert(key, info);
+				}
+				else {
+					tree.delete(key);
+				}
+			}
+		}
+		
+		// returns the LSN of the last record in the snapshot, 0 if there is none
+		private long loadSnapshot() throws IOException {
+			
+			Path snapshot = dir.resolve(SNAPSHOT_FILE);
+			if (!Files.exists(snapshot)) {
+				return 0;
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+				long lsn = in.readLong();
+				int count = in.readInt();
+				for (int n = 0; n < count; n++) {
+					int k = in.readInt();
+					tree.insert(k, readInfo(in));
+				}
+				return lsn;
+			}
+		}
+		
+		private static void writeInfo(DataOutputStream out, String info) throws IOException {
+			
+			if (info == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		private static String readInfo(DataInputStream in) throws IOException {
+			
+			int length = in.readInt();
+			if (length == -1) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * public static class FrozenAVLTree
+	 *
+	 * A read-only copy of an AVL tree (see AVLTree.freeze()).
+	 * The keys are stored in one array in Eytzinger order: the children of
+	 * slot j are slots 2j and 2j+1, so a descent touches the top levels
+	 * in a few cache lines and needs no pointers.
+	 * The descent never leaves the loop early, so the comparison compiles
+	 * to a conditional move instead of a branch.
+	 * The info of the items and the prefix sums of the keys are stored in key order,
+	 * so select is O(1) and less is a single descent.
+	 */
+	public static class FrozenAVLTree {
+		
+		private static final int BATCH_LANES = 16; // descents interleaved by the batch methods
+		
+		private final int size;
+		private final int levels; // number of levels of the implicit tree
+		private final int[] layout; // keys in Eytzinger order, 1-based
+		private final int[] rankOf; // rankOf[j] = position of layout[j] in key order (0-based)
+		private final String[] infos; // infos in key order
+		private final int[] prefixSums; // prefixSums[r] = sum of the r smallest keys
+		
+		/**
+		 * FrozenAVLTree constructor
+		 * @param keys sorted keys
+		 * @param infos infos of the keys, in the same order
+		 */
+		public FrozenAVLTree(int[] keys, String[] infos) {
+			this(keys, infos, keys);
+		}
+		
+		/**
+		 * FrozenAVLTree constructor
+		 * @param keys sorted keys
+		 * @param infos infos of the keys, in the same order
+		 * @param values values summed by less, in the same order
+		 */
+		public FrozenAVLTree(int[] keys, String[] infos, int[] values) {
+			
+			this.size = keys.length;
+			this.levels = 32 - Integer.numberOfLeadingZeros(size);
+			this.layout = new int[size + 1];
+			this.layout[0] = Integer.MIN_VALUE; // batch descents read slot 0 for lanes past the last level
+			this.rankOf = new int[size + 1];
+			this.infos = infos.clone();
+			this.prefixSums = new int[size + 1];
+			for (int r = 0; r < size; r++) {
+				prefixSums[r + 1] = prefixSums[r] + values[r];
+			}
+			fill(keys, 0, 1);
+		}
+		
+		// in order walk over the implicit tree, handing out the sorted keys
+		private int fill(int[] keys, int r, int j) {
+			
+			if (j <= size) {
+				r = fill(keys, r, 2 * j);
+				layout[j] = keys[r];
+				rankOf[j] = r++;
+				r = fill(keys, r, 2 * j + 1);
+			}
+			return r;
+		}
+		
+		/**
+		 * @param k
+		 * @return slot of the smallest key >= k, or 0 if there is none
+		 */
+		private int lowerBound(int k) {
+			
+			int j = 1;
+			while (j <= size) {
+				j = 2 * j + (layout[j] < k ? 1 : 0);
+			}
+			// drop the trailing right turns and the last left turn
+			return j >>> (Integer.numberOfTrailingZeros(~j) + 1);
+		}
+		
+		/**
+		 * @param k
+		 * @return number of keys <= k
+		 */
+		private int rank(int k) {
+			
+			int j = 1;
+			while (j <= size) {
+				j = 2 * j + (layout[j] <= k ? 1 : 0);
+			}
+			j >>>= Integer.numberOfTrailingZeros(~j) + 1;
+			return j == 0 ? size : rankOf[j];
+		}
+		
+		public boolean empty() {
+			return size == 0;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists in the tree
+		 * otherwise, returns null
+		 */
+		public String search(int k) {
+			
+			int j = lowerBound(k);
+			if (j == 0 || layout[j] != k) {
+				return null;
+			}
+			return infos[rankOf[j]];
+		}
+		
+		/**
+		 * public String select(int i)
+		 *
+		 * Returns the value of the i'th smallest key, or null if i is out of range
+		 */
+		public String select(int i) {
+			
+			if (i < 1 || i > size) {
+				return null;
+			}
+			return infos[i - 1];
+		}
+		
+		/**
+		 * public int less(int i)
+		 *
+		 * Returns the sum of all keys which are less or equal to i
+		 */
+		public int less(int i) {
+			return prefixSums[rank(i)];
+		}
+		
+		/**
+		 * public void searchBatch(int[] keys, String[] out)
+		 *
+		 * out[n] is set to search(keys[n]) for every n.
+		 * The keys are looked up BATCH_LANES at a time, one level of all the lanes
+		 * per step, so the cache misses of the lanes overlap instead of
+		 * following each other.
+		 */
+		public void searchBatch(int[] keys, String[] out) {
+			
+			if (out.length < keys.length) {
+				throw new IllegalArgumentException("out is shorter than keys");
+			}
+			int[] pos = new int[BATCH_LANES];
+			int[] last = new int[BATCH_LANES];
+			for (int from = 0; from < keys.length; from += BATCH_LANES) {
+				int lanes = Math.min(BATCH_LANES, keys.length - from);
+				descendBatch(keys, from, lanes, pos, last);
+				for (int l = 0; l < lanes; l++) {
+					int j = last[l];
+					out[from + l] = (j != 0 && layout[j] == keys[from + l]) ? infos[rankOf[j]] : null;
+				}
+			}
+		}
+		
+		/**
+		 * public void lessBatch(int[] bounds, long[] out)
+		 *
+		 * out[n] is set to less(bounds[n]) for every n,
+		 * with the lookups interleaved as in searchBatch.
+		 */
+		public void lessBatch(int[] bounds, long[] out) {
+			
+			if (out.length < bounds.length) {
+				throw new IllegalArgumentException("out is shorter than bounds");
+			}
+			int[] pos = new int[BATCH_LANES];
+			int[] last = new int[BATCH_LANES];
+			for (int from = 0; from < bounds.length; from += BATCH_LANES) {
+				int lanes = Math.min(BATCH_LANES, bounds.length - from);
+				descendBatch(bounds, from, lanes, pos, last);
+				for (int l = 0; l < lanes; l++) {
+					int j = last[l];
+					out[from + l] = prefixSums[j == 0 ? 0 : rankOf[j] + 1];
+				}
+			}
+		}
+		
+		/**
+		 * descends the implicit tree for keys[from .. from + lanes - 1] together,
+		 * one level of every lane per step
+		 * @return (in last) for every lane, the slot of the largest key <= the lane's key, or 0 if there is none
+		 */
+		private void descendBatch(int[] keys, int from, int lanes, int[] pos, int[] last) {
+			
+			for (int l = 0; l < lanes; l++) {
+				pos[l] = 1;
+				last[l] = 0;
+			}
+			for (int level = 0; level < levels; level++) {
+				for (int l = 0; l < lanes; l++) {
+					int j = pos[l];
+					int slot = j <= size ? j : 0; // only the last level can be partly filled
+					boolean right = layout[slot] <= keys[from + l];
+					last[l] = (right && slot != 0) ? slot : last[l];
+					pos[l] = 2 * j + (right ? 1 : 0);
+				}
+			}
+		}
+		
+		public String min() {
+			return empty() ? null : infos[0];
+		}
+		
+		public String max() {
+			return empty() ? null : infos[size - 1];
+		}
+		
+		public int[] keysToArray() {
+			
+			int[] keys = new int[size];
+			for (int j = 1; j <= size; j++) {
+				keys[rankOf[j]] = layout[j];
+			}
+			return keys;
+		}
+		
+		public String[] infoToArray() {
+			return infos.clone();
+		}
+	}
+	
+	/**
+	 * public static class BucketAVLTree
+	 *
+	 * An AVL tree with distinct integer keys and info whose nodes are buckets
+	 * of up to bucketSize sorted keys, so it has about n / bucketSize nodes
+	 * instead of n. A bucket keeps its smallest key and the gaps to the next
+	 * keys as varints (a run of consecutive keys takes one byte per key),
+	 * and the infos only if some of them are not null.
+	 * Every node keeps the number and the sum of the keys in its subtree,
+	 * so select and less are O(log n + bucketSize), and scans decode
+	 * the buckets in key order.
+	 * A full bucket is split in half, or, when the new key is its largest,
+	 * just that key moves to a new bucket, so increasing keys fill the buckets.
+	 * When deletes leave many buckets nearly empty, the tree is packed again.
+	 * Reads decode into their own arrays or not at all, so any number of them
+	 * may run concurrently; a write must not run alongside anything else.
+	 */
+	public static class BucketAVLTree {
+		
+		public static final int DEFAULT_BUCKET_SIZE = 64;
+		
+		private final int bucketSize;
+		private final int[] scratch; // keys of the bucket being changed; reads decode in place, so they may run concurrently
+		private Bucket root = null;
+		private int buckets = 0;
+		private boolean changed; // the last insert or delete changed the tree
+		private int rotations; // rotations of the last insert or delete
+		
+		public BucketAVLTree() {
+			this(DEFAULT_BUCKET_SIZE);
+		}
+		
+		public BucketAVLTree(int bucketSize) {
+			
+			if (bucketSize < 2) {
+				throw new IllegalArgumentException("bucket size must be at least 2: " + bucketSize);
+			}
+			this.bucketSize = bucketSize;
+			this.scratch = new int[bucketSize + 1];
+		}
+		
+		public boolean empty() {
+			return root == null;
+		}
+		
+		public int size() {
+			return size(root);
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists in the tree
+		 * otherwise, returns null
+		 */
+		public String search(int k) {
+			
+			Bucket node = root;
+			while (node != null) {
+				if (k < node.first) {
+					node = node.left;
+				}
+				else if (k > node.last) {
+					node = node.right;
+				}
+				else {
+					int j = node.indexOf(k);
+					return j < 0 ? null : node.info(j);
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i.
+		 * returns the number of rotations, or -1 if an item with key k already exists in the tree.
+		 */
+		public int insert(int k, String i) {
+			
+			changed = false;
+			rotations = 0;
+			root = insert(root, k, i);
+			return changed ? rotations : -1;
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes the item with key k, if it is there.
+		 * returns the number of rotations, or -1 if k was not found in the tree.
+		 */
+		public int delete(int k) {
+			
+			changed = false;
+			rotations = 0;
+			root = delete(root, k);
+			if (!changed) {
+				return -1;
+			}
+			// pack the buckets again once they are a quarter full on average
+			if (buckets > 4 * (size() / bucketSize + 1)) {
+				pack();
+			}
+			return rotations;
+		}
+		
+		/**
+		 * public String select(int i)
+		 *
+		 * Returns the info of the i'th smallest key, or null if i is out of range
+		 */
+		public String select(int i) {
+			
+			if (i < 1 || i > size()) {
+				return null;
+			}
+			Bucket node = root;
+			while (true) {
+				int leftSize = size(node.left);
+				if (i <= leftSize) {
+					node = node.left;
+				}
+				else if (i <= leftSize + node.count) {
+					return node.info(i - leftSize - 1);
+				}
+				else {
+					i -= leftSize + node.count;
+					node = node.right;
+				}
+			}
+		}
+		
+		/**
+		 * public int less(int i)
+		 *
+		 * Returns the sum of all keys which are less or equal to i
+		 */
+		public int less(int i) {
+			
+			int sum = 0;
+			Bucket node = root;
+			while (node != null) {
+				if (i < node.first) {
+					node = node.left;
+					continue;
+				}
+				sum += sum(node.left);
+				if (i >= node.last) {
+					sum += node.bucketSum;
+					node = node.right;
+					continue;
+				}
+				sum += node.sumUpTo(i);
+				break;
+			}
+			return sum;
+		}
+		
+		// info of the smallest key, or null if the tree is empty
+		public String min() {
+			return empty() ? null : first(root).info(0);
+		}
+		
+		// info of the largest key, or null if the tree is empty
+		public String max() {
+			
+			if (empty()) {
+				return null;
+			}
+			Bucket node = last(root);
+			return node.info(node.count - 1);
+		}
+		
+		public int minKey() {
+			return empty() ? -1 : first(root).first;
+		}
+		
+		public int maxKey() {
+			return empty() ? -1 : last(root).last;
+		}
+		
+		public int[] keysToArray() {
+			
+			int[] keys = new int[size()];
+			keysInOrder(root, keys, 0);
+			return keys;
+		}
+		
+		public String[] infoToArray() {
+			
+			String[] infos = new String[size()];
+			infosInOrder(root, infos, 0);
+			return infos;
+		}
+		
+		private int keysInOrder(Bucket node, int[] keys, int pos) {
+			
+			if (node == null) {
+				return pos;
+			}
+			pos = keysInOrder(node.left, keys, pos);
+			node.decode(keys, pos);
+			return keysInOrder(node.right, keys, pos + node.count);
+		}
+		
+		private int infosInOrder(Bucket node, String[] infos, int pos) {
+			
+			if (node == null) {
+				return pos;
+			}
+			pos = infosInOrder(node.left, infos, pos);
+			if (node.infos != null) {
+				System.arraycopy(node.infos, 0, infos, pos, node.count);
+			}
+			return infosInOrder(node.right, infos, pos + node.count);
+		}
+		
+		/**
+		 * inserts into the subtree of node: k goes into a bucket whose range
+		 * holds it, or that has no child on the side of k
+		 * @return the new root of the subtree
+		 */
+		private Bucket insert(Bucket node, int k, String info) {
+			
+			if (node == null) {
+				scratch[0] = k;
+				buckets++;
+				changed = true;
+				return new Bucket(scratch, info == null ? null : new String[] {info}, 0, 1);
+			}
+			if (k < node.first && node.left != null) {
+				node.left = insert(node.left, k, info);
+			}
+			else if (k > node.last && node.right != null) {
+				node.right = insert(node.right, k, info);
+			}
+			else {
+				int n = node.decode(scratch);
+				int j = Arrays.binarySearch(scratch, 0, n, k);
+				if (j >= 0) {
+					return node;
+				}
+				j = -j - 1;
+				changed = true;
+				System.arraycopy(scratch, j, scratch, j + 1, n - j);
+				scratch[j] = k;
+				String[] infos = node.infos;
+				if (infos != null || info != null) {
+					infos = new String[n + 1];
+					if (node.infos != null) {
+						System.arraycopy(node.infos, 0, infos, 0, j);
+						System.arraycopy(node.infos, j, infos, j + 1, n - j);
+					}
+					infos[j] = info;
+				}
+				n++;
+				if (n <= bucketSize) {
+					node.encode(scratch, infos, 0, n);
+				}
+				else {
+					// the new bucket takes the upper half, or only the new key if it is the largest
+					int cut = j == n - 1 ? j : n / 2;
+					Bucket upper = new Bucket(scratch, infos, cut, n);
+					node.encode(scratch, infos, 0, cut);
+					node.right = insertFirst(node.right, upper);
+					buckets++;
+				}
+			}
+			return balance(node);
+		}
+		
+		// adds bucket as the first node of the subtree
+		private Bucket insertFirst(Bucket node, Bucket bucket) {
+			
+			if (node == null) {
+				return bucket;
+			}
+			node.left = insertFirst(node.left, bucket);
+			return balance(node);
+		}
+		
+		private Bucket delete(Bucket node, int k) {
+			
+			if (node == null) {
+				return null;
+			}
+			if (k < node.first) {
+				node.left = delete(node.left, k);
+			}
+			else if (k > node.last) {
+				node.right = delete(node.right, k);
+			}
+			else {
+				int n = node.decode(scratch);
+				int j = Arrays.binarySearch(scratch, 0, n, k);
+				if (j < 0) {
+					return node;
+				}
+				changed = true;
+				if (n == 1) {
+					buckets--;
+					return unlink(node);
+				}
+				System.arraycopy(scratch, j + 1, scratch, j, n - j - 1);
+				String[] infos = null;
+				if (node.infos != null) {
+					infos = new String[n - 1];
+					System.arraycopy(node.infos, 0, infos, 0, j);
+					System.arraycopy(node.infos, j + 1, infos, j, n - j - 1);
+				}
+				node.encode(scratch, infos, 0, n - 1);
+			}
+			return balance(node);
+		}
+		
+		// removes node from its subtree, its successor takes its place
+		private Bucket unlink(Bucket node) {
+			
+			if (node.left == null) {
+				return node.right;
+			}
+			if (node.right == null) {
+				return node.left;
+			}
+			Bucket successor = first(node.right);
+			successor.right = removeFirst(node.right);
+			successor.left = node.left;
+			return balance(successor);
+		}
+		
+		private Bucket removeFirst(Bucket node) {
+			
+			if (node.left == null) {
+				return node.right;
+			}
+			node.left = removeFirst(node.left);
+			return balance(node);
+		}
+		
+		private static Bucket first(Bucket node) {
+			
+			while (node.left != null) {
+				node = node.left;
+			}
+			return node;
+		}
+		
+		private static Bucket last(Bucket node) {
+			
+			while (node.right != null) {
+				node = node.right;
+			}
+			return node;
+		}
+		
+		// rebuilds the tree with full buckets
+		private void pack() {
+			
+			int[] keys = keysToArray();
+			String[] infos = infoToArray();
+			buckets = (keys.length + bucketSize - 1) / bucketSize;
+			root = build(keys, infos, 0, buckets - 1);
+		}
+		
+		// builds a balanced subtree of the buckets lo..hi (bucket b holds keys[b * bucketSize ..])
+		private Bucket build(int[] keys, String[] infos, int lo, int hi) {
+			
+			if (lo > hi) {
+				return null;
+			}
+			int mid = (lo + hi) >>> 1;
+			int from = mid * bucketSize, to = Math.min(from + bucketSize, keys.length);
+			String[] slice = null;
+			for (int j = from; j < to && slice == null; j++) {
+				if (infos[j] != null) {
+					slice = infos;
+				}
+			}
+			Bucket node = new Bucket(keys, slice, from, to);
+			node.left = build(keys, infos, lo, mid - 1);
+			node.right = build(keys, infos, mid + 1, hi);
+			update(node);
+			return node;
+		}
+		
+		private Bucket balance(Bucket node) {
+			
+			update(node);
+			int bf = height(node.left) - height(node.right);
+			if (bf > 1) {
+				if (height(node.left.left) < height(node.left.right)) {
+					node.left = rotateLeft(node.left);
+				}
+				return rotateRight(node);
+			}
+			if (bf < -1) {
+				if (height(node.right.right) < height(node.right.left)) {
+					node.right = rotateRight(node.right);
+				}
+				return rotateLeft(node);
+			}
+			return node;
+		}
+		
+		private Bucket rotateRight(Bucket node) {
+			
+			Bucket left = node.left;
+			node.left = left.right;
+			left.right = node;
+			update(node);
+			update(left);
+			rotations++;
+			return left;
+		}
+		
+		private Bucket rotateLeft(Bucket node) {
+			
+			Bucket right = node.right;
+			node.right = right.left;
+			right.left = node;
+			update(node);
+			update(right);
+			rotations++;
+			return right;
+		}
+		
+		private static void update(Bucket node) {
+			
+			node.height = Math.max(height(node.left), height(node.right)) + 1;
+			node.size = size(node.left) + size(node.right) + node.count;
+			node.sum = sum(node.left) + sum(node.right) + node.bucketSum;
+		}
+		
+		private static int height(Bucket node) {
+			return node == null ? -1 : node.height;
+		}
+		
+		private static int size(Bucket node) {
+			return node == null ? 0 : node.size;
+		}
+		
+		private static int sum(Bucket node) {
+			return node == null ? 0 : node.sum;
+		}
+		
+		private static class Bucket {
+			
+			private Bucket left, right;
+			private int first, last; // smallest and largest key of the bucket
+			private int count;
+			private int bucketSum;
+			private byte[] gaps; // varints of key[j] - key[j - 1] - 1 for j = 1 .. count - 1
+			private String[] infos; // null while all the infos are null
+			private int height, size, sum; // of the subtree
+			
+			// a bucket of keys[from .. to - 1] (and their infos, if infos is not null)
+			Bucket(int[] keys, String[] infos, int from, int to) {
+				
+				encode(keys, infos, from, to);
+				this.size = count;
+				this.sum = bucketSum;
+			}
+			
+			void encode(int[] keys, String[] infos, int from, int to) {
+				
+				int length = 0;
+				for (int j = from + 1; j < to; j++) {
+					for (long gap = (long) keys[j] - keys[j - 1] - 1; ; gap >>>= 7) {
+						length++;
+						if (gap < 0x80) {
+							break;
+						}
+					}
+				}
+				this.gaps = new byte[length];
+				this.first = keys[from];
+				this.last = keys[to - 1];
+				this.count = to - from;
+				this.bucketSum = keys[from];
+				int p = 0;
+				for (int j = from + 1; j < to; j++) {
+					long gap = (long) keys[j] - keys[j - 1] - 1;
+					while (gap >= 0x80) {
+						gaps[p++] = (byte) (gap | 0x80);
+						gap >>>= 7;
+					}
+					gaps[p++] = (byte) gap;
+					bucketSum += keys[j];
+				}
+				this.infos = infos == null ? null : Arrays.copyOfRange(infos, from, to);
+			}
+			
+			int decode(int[] keys) {
+				return decode(keys, 0);
+			}
+			
+			// writes the keys to keys[pos ..], returns their number
+			int decode(int[] keys, int pos) {
+				
+				int key = first;
+				keys[pos] = key;
+				int p = 0;
+				for (int j = 1; j < count; j++) {
+					long gap = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = gaps[p++];
+						gap |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while (b < 0);
+					key = (int) (key + gap + 1);
+					keys[pos + j] = key;
+				}
+				return count;
+			}
+			
+			// index of k in the bucket, or -1; reads the gaps in place
+			int indexOf(int k) {
+				
+				int key = first;
+				int p = 0;
+				for (int j = 0; key <= k; j++) {
+					if (key == k) {
+						return j;
+					}
+					if (j + 1 == count) {
+						break;
+					}
+					long gap = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = gaps[p++];
+						gap |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while (b < 0);
+					key = (int) (key + gap + 1);
+				}
+				return -1;
+			}
+			
+			// sum of the keys of the bucket up to i; reads the gaps in place
+			int sumUpTo(int i) {
+				
+				int key = first;
+				int sum = 0;
+				int p = 0;
+				for (int j = 0; key <= i; j++) {
+					sum += key;
+					if (j + 1 == count) {
+						break;
+					}
+					long gap = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = gaps[p++];
+						gap |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while (b < 0);
+					key = (int) (key + gap + 1);
+				}
+				return sum;
+			}
+			
+			String info(int j) {
+				return infos == null ? null : infos[j];
+			}
+		}
+	}
+	
+	/**
+	 * public static class ValueStore
+	 *
+	 * The infos of a tree (see AVLTree.setValueStore), kept in two ways:
+	 * infos shorter than offHeapThreshold chars go through a dictionary,
+	 * so equal infos share one String (the dictionary stops growing at
+	 * dictionaryCapacity distinct infos and is never emptied); longer infos
+	 * are written as UTF-8 to direct memory slabs of SLAB_SIZE bytes and the
+	 * node keeps a small handle. A deleted info leaves a hole in its slab;
+	 * once the holes outweigh the live bytes the tree copies its live infos
+	 * to new slabs and the old ones are freed by the garbage collector.
+	 * Infos longer than a quarter of a slab get a buffer of their own.
+	 * Not thread safe, like the tree.
+	 */
+	public static class ValueStore {
+		
+		public static final int SLAB_SIZE = 1 << 20;
+		
+		private final int offHeapThreshold;
+		private final int dictionaryCapacity;
+		private final HashMap<String, String> dictionary = new HashMap<>();
+		private ByteBuffer slab = null; // the slab being filled
+		private long liveBytes = 0;
+		private long garbageBytes = 0; // holes in the shared slabs
+		
+		public ValueStore() {
+			this(256, 1 << 16);
+		}
+		
+		/**
+		 * ValueStore constructor
+		 * @param offHeapThreshold infos of at least this many chars are kept off heap
+		 * @param dictionaryCapacity number of distinct shorter infos that are shared
+		 */
+		public ValueStore(int offHeapThreshold, int dictionaryCapacity) {
+			
+			if (offHeapThreshold < 0 || dictionaryCapacity < 0) {
+				throw new IllegalArgumentException("threshold and capacity must not be negative");
+			}
+			this.offHeapThreshold = offHeapThreshold;
+			this.dictionaryCapacity = dictionaryCapacity;
+		}
+		
+		// bytes of the infos kept off heap
+		public long offHeapBytes() {
+			return liveBytes;
+		}
+		
+		// bytes of the slabs freed by deletes and not yet reclaimed
+		public long garbageBytes() {
+			return garbageBytes;
+		}
+		
+		public int dictionarySize() {
+			return dictionary.size();
+		}
+		
+		// the form of info to keep in a node
+		private Object store(String info) {
+			
+			if (info == null) {
+				return null;
+			}
+			if (info.length() >= offHeapThreshold) {
+				byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+				SlabValue value = new SlabValue(bytes.length, info.hashCode());
+				place(value, bytes);
+				return value;
+			}
+			String shared = dictionary.get(info);
+			if (shared != null) {
+				return shared;
+			}
+			if (dictionary.size() < dictionaryCapacity) {
+				dictionary.put(info, info);
+			}
+			return info;
+		}
+		
+		private void place(SlabValue value, byte[] bytes) {
+			
+			if (bytes.length > SLAB_SIZE / 4) {
+				value.slab = ByteBuffer.allocateDirect(bytes.length);
+				value.offset = 0;
+			}
+			else {
+				if (slab == null || slab.remaining() < bytes.length) {
+					slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+				}
+				value.slab = slab;
+				value.offset = slab.position();
+			}
+			value.slab.put(value.offset, bytes);
+			if (value.slab == slab) {
+				slab.position(value.offset + bytes.length);
+			}
+			liveBytes += bytes.length;
+		}
+		
+		// called for an info that left the tree
+		private void drop(Object info) {
+			
+			if (info instanceof SlabValue) {
+				int length = ((SlabValue) info).length;
+				liveBytes -= length;
+				if (length <= SLAB_SIZE / 4) {
+					garbageBytes += length; // a buffer of its own is freed with the handle
+				}
+			}
+		}
+		
+		private boolean wantsCompaction() {
+			return garbageBytes > Math.max(liveBytes, SLAB_SIZE);
+		}
+		
+		// the tree then relocates every live off-heap info
+		private void startCompaction() {
+			
+			slab = null;
+			liveBytes = 0;
+			garbageBytes = 0;
+		}
+		
+		private void relocate(SlabValue value) {
+			
+			if (value.length > SLAB_SIZE / 4) {
+				liveBytes += value.length; // stays in its own buffer
+			}
+			else {
+				place(value, value.bytes());
+			}
+		}
+		
+		/**
+		 * public static final class SlabValue
+		 *
+		 * Handle of an info kept off heap: where its UTF-8 bytes are, and the hash
+		 * of the String (so hashing the tree does not decode it).
+		 */
+		public static final class SlabValue {
+			
+			private ByteBuffer slab;
+			private int offset;
+			private final int length;
+			private final int hash;
+			
+			private SlabValue(int length, int hash) {
+				
+				this.length = length;
+				this.hash = hash;
+			}
+			
+			private byte[] bytes() {
+				
+				byte[] bytes = new byte[length];
+				slab.get(offset, bytes);
+				return bytes;
+			}
+			
+			public String decode() {
+				return new String(bytes(), StandardCharsets.UTF_8);
+			}
+			
+			@Override
+			public int hashCode() {
+				return hash;
+			}
+		}
+	}
+	
+	/**
+	 * public static class Profiler
+	 *
+	 * Counts the traffic of a tree (see AVLTree.setProfiler): operations by kind,
+	 * rotations by kind, how often inserts come in ascending order and how often
+	 * an operation's key is close to the previous one. Every sampleEvery'th keyed
+	 * operation also measures the depth of its descent, to compare with log2(size).
+	 * report() turns this into text with advice on which layout fits the traffic.
+	 * The WAVL and red-black policies rotate one edge at a time, so their rotations
+	 * are counted as LL (right rotation) or RR (left rotation); a double rotation
+	 * counts as two. Rotations are also counted by the operation that made them,
+	 * as the policies differ only in how they rotate on deletes.
+	 */
+	public static class Profiler {
+		
+		public static final int INSERT = 0, DELETE = 1, SEARCH = 2, SELECT = 3, LESS = 4;
+		public static final int LL = 0, RR = 1, LR = 2, RL = 3;
+		private static final String[] OP_NAMES = {"insert", "delete", "search", "select", "less"};
+		private static final String[] ROTATION_NAMES = {"LL", "RR", "LR", "RL"};
+		private static final int NEAR = 64; // keys at most this far apart count as close
+		
+		private final int sampleEvery;
+		private final BalancePolicy policy;
+		private final long[] ops = new long[OP_NAMES.length];
+		private final long[] rotations = new long[ROTATION_NAMES.length];
+		private final long[] rotationsBy = new long[OP_NAMES.length]; // rotations by the operation that made them
+		private int lastOp = INSERT;
+		private long ascendingInserts, keyedOps, nearKeys;
+		private int lastKey, minKey = Integer.MAX_VALUE, maxKey = Integer.MIN_VALUE;
+		private int countdown;
+		private long samples, depthSum;
+		private double log2Sum;
+		
+		private Profiler(int sampleEvery, BalancePolicy policy) {
+			
+			this.sampleEvery = sampleEvery;
+			this.policy = policy;
+			this.countdown = sampleEvery;
+		}
+		
+		// counts a keyed operation; returns true if its depth should be sampled
+		private boolean count(int op, int key, boolean ascending) {
+			
+			ops[op]++;
+			lastOp = op;
+			if (op == INSERT && ascending) {
+				ascendingInserts++;
+			}
+			if (keyedOps++ > 0 && Math.abs((long) key - lastKey) <= NEAR) {
+				nearKeys++;
+			}
+			lastKey = key;
+			minKey = Math.min(minKey, key);
+			maxKey = Math.max(maxKey, key);
+			if (--countdown > 0) {
+				return false;
+			}
+			countdown = sampleEvery;
+			return true;
+		}
+		
+		// counts a rotation of the operation in progress
+		private void rotated(int kind) {
+			
+			rotations[kind]++;
+			rotationsBy[lastOp]++;
+		}
+		
+		private void recordDepth(int depth, int size) {
+			
+			samples++;
+			depthSum += depth;
+			log2Sum += Math.log(size + 1) / Math.log(2);
+		}
+		
+		public long operations(int op) {
+			return ops[op];
+		}
+		
+		public long rotations(int kind) {
+			return rotations[kind];
+		}
+		
+		// rotations made by inserts (op INSERT) or by deletes (op DELETE)
+		public long rotationsBy(int op) {
+			return rotationsBy[op];
+		}
+		
+		public void reset() {
+			
+			Arrays.fill(ops, 0);
+			Arrays.fill(rotations, 0);
+			Arrays.fill(rotationsBy, 0);
+			lastOp = INSERT;
+			ascendingInserts = keyedOps = nearKeys = 0;
+			minKey = Integer.MAX_VALUE;
+			maxKey = Integer.MIN_VALUE;
+			samples = depthSum = 0;
+			log2Sum = 0;
+			countdown = sampleEvery;
+		}
+		
+		/**
+		 * public String report()
+		 *
+		 * Returns the counts so far as text, followed by advice
+		 */
+		public String report() {
+			
+			long total = 0;
+			for (long n : ops) {
+				total += n;
+			}
+			long writes = ops[INSERT] + ops[DELETE];
+			long rotated = rotations[LL] + rotations[RR] + rotations[LR] + rotations[RL];
+			StringBuilder out = new StringBuilder();
+			out.append(String.format("operations: %d (writes %.1f%%)%n", total, percent(writes, total)));
+			for (int op = 0; op < OP_NAMES.length; op++) {
+				out.append(String.format("  %-7s %d (%.1f%%)%n", OP_NAMES[op], ops[op], percent(ops[op], total)));
+			}
+			out.append(String.format("rotations: %d (%.2f per write)%n", rotated, writes == 0 ? 0.0 : (double) rotated / writes));
+			for (int kind = 0; kind < ROTATION_NAMES.length; kind++) {
+				out.append(String.format("  %-7s %d%n", ROTATION_NAMES[kind], rotations[kind]));
+			}
+			out.append(String.format("  by inserts %d (%.2f per insert), by deletes %d (%.2f per delete)%n",
+					rotationsBy[INSERT], perOp(rotationsBy[INSERT], ops[INSERT]), rotationsBy[DELETE], perOp(rotationsBy[DELETE], ops[DELETE])));
+			double depth = samples == 0 ? 0 : (double) depthSum / samples;
+			double log2 = samples == 0 ? 0 : log2Sum / samples;
+			out.append(String.format("descent depth: %.2f on average over %d samples, log2(size) %.2f%n", depth, samples, log2));
+			if (keyedOps > 0) {
+				out.append(String.format("keys: [%d, %d], ascending inserts %.1f%%, close to the previous key %.1f%%%n",
+						minKey, maxKey, percent(ascendingInserts, ops[INSERT]), percent(nearKeys, keyedOps)));
+			}
+			out.append("advice:").append(System.lineSeparator());
+			int advice = 0;
+			if (ops[INSERT] >= 1000 && ascendingInserts > 0.9 * ops[INSERT]) {
+				advice++;
+				out.append("  inserts come in key order: load them with fromSorted, or use BucketAVLTree").append(System.lineSeparator());
+			}
+			if (total >= 1000 && writes < 0.05 * total) {
+				advice++;
+				out.append("  almost all reads: query a freeze() copy (or an AVLTreeService)").append(System.lineSeparator());
+			}
+			if (keyedOps >= 1000 && nearKeys > 0.5 * keyedOps) {
+				advice++;
+				out.append("  most operations are close to the previous key: a finger search from the last node would skip most of the descent").append(System.lineSeparator());
+			}
+			if (policy == AVL && ops[DELETE] >= 1000 && rotationsBy[DELETE] > 0.5 * ops[DELETE]) {
+				advice++;
+				out.append("  many rotations per delete: the WAVL policy rotates less on deletes").append(System.lineSeparator());
+			}
+			if (samples >= 100 && depth > 1.5 * log2 + 1) {
+				advice++;
+				out.append("  descents are deeper than log2(size): compact() the tombstones, or rebuild the tree").append(System.lineSeparator());
+			}
+			if (advice == 0) {
+				out.append("  none, the tree fits this traffic").append(System.lineSeparator());
+			}
+			return out.toString();
+		}
+		
+		private static double percent(long part, long whole) {
+			return whole == 0 ? 0 : 100.0 * part / whole;
+		}
+		
+		private static double perOp(long count, long ops) {
+			return ops == 0 ? 0 : (double) count / ops;
+		}
+	}
+	
+	/**
+	 * public static class ChangeFeed
+	 *
+	 * An append only ring buffer of the inserts and deletes of one tree,
+	 * numbered by a sequence that starts at 0. The tree is the only writer;
+	 * each subscriber reads from its own position, in batches, and may run on
+	 * another thread. A subscriber that falls more than the capacity behind
+	 * has lost changes and must start over from a copy of the tree.
+	 */
+	public static class ChangeFeed {
+		
+		public static final byte INSERT = 1;
+		public static final byte DELETE = 2;
+		
+		private final int mask;
+		private final byte[] ops;
+		private final int[] keys;
+		private final String[] infos;
+		private volatile long published = 0; // changes below this sequence can be read
+		
+		private ChangeFeed(int capacity) {
+			
+			// one more slot than capacity, for the change being written
+			int size = Integer.highestOneBit(capacity) << 1;
+			this.mask = size - 1;
+			this.ops = new byte[size];
+			this.keys = new int[size];
+			this.infos = new String[size];
+		}
+		
+		// called by the tree only
+		private void append(byte op, int key, String info) {
+			
+			long seq = published;
+			int slot = (int) seq & mask;
+			// keeps the slot stores below from becoming visible before the store of published
+			// by the previous append, which a subscriber checks to tell the slot was not overwritten
+			VarHandle.storeStoreFence();
+			ops[slot] = op;
+			keys[slot] = key;
+			infos[slot] = info;
+			published = seq + 1;
+		}
+		
+		// number of changes kept for the subscribers
+		public int capacity() {
+			return mask;
+		}
+		
+		/**
+		 * public long sequence()
+		 *
+		 * Returns the sequence number of the next change
+		 */
+		public long sequence() {
+			return published;
+		}
+		
+		/**
+		 * public Subscription subscribe()
+		 *
+		 * Returns a subscription that reads the changes made from now on
+		 */
+		public Subscription subscribe() {
+			return new Subscription(published);
+		}
+		
+		/**
+		 * public Subscription subscribe(long from)
+		 *
+		 * Returns a subscription that reads the changes from sequence from on,
+		 * for a replica that saved its position
+		 */
+		public Subscription subscribe(long from) {
+			
+			if (from < 0 || from > published) {
+				throw new IllegalArgumentException("sequence out of range: " + from);
+			}
+			return new Subscription(from);
+		}
+		
+		/**
+		 * public class Subscription
+		 *
+		 * A reader of the feed. Not thread safe; use one per subscriber.
+		 */
+		public class Subscription {
+			
+			private long position;
+			
+			private Subscription(long position) {
+				this.position = position;
+			}
+			
+			// sequence of the next change this subscription returns
+			public long position() {
+				return position;
+			}
+			
+			// number of changes published but not read yet
+			public long lag() {
+				return published - position;
+			}
+			
+			/**
+			 * public Changes poll(int max)
+			 *
+			 * Returns up to max of the next changes (possibly none) and moves past them.
+			 * Throws IllegalStateException if some of them were already overwritten.
+			 */
+			public Changes poll(int max) {
+				
+				long end = Math.min(published, position + max);
+				int n = (int) (end - position);
+				byte[] ops = new byte[n];
+				int[] keys = new int[n];
+				String[] infos = new String[n];
+				for (int j = 0; j < n; j++) {
+					int slot = (int) (position + j) & mask;
+					ops[j] = ChangeFeed.this.ops[slot];
+					keys[j] = ChangeFeed.this.keys[slot];
+					infos[j] = ChangeFeed.this.infos[slot];
+				}
+				// keeps the reads of the slots above from moving past the re-read of published (as in StampedLock.validate);
+				// the writer may be writing sequence published, over published - capacity
+				VarHandle.acquireFence();
+				if (n > 0 && position <= published - (mask + 1)) {
+					throw new IllegalStateException("subscriber fell behind the change feed at sequence " + position);
+				}
+				Changes batch = new Changes(position, ops, keys, infos);
+				position = end;
+				return batch;
+			}
+		}
+	}
+	
+	/**
+	 * public static class Changes
+	 *
+	 * A batch of consecutive changes read from a ChangeFeed
+	 */
+	public static class Changes {
+		
+		private final long first;
+		private final byte[] ops;
+		private final int[] keys;
+		private final String[] infos;
+		
+		private Changes(long first, byte[] ops, int[] keys, String[] infos) {
+			
+			this.first = first;
+			this.ops = ops;
+			this.keys = keys;
+			this.infos = infos;
+		}
+		
+		public int size() {
+			return ops.length;
+		}
+		
+		public long sequence(int j) {
+			return first + j;
+		}
+		
+		public byte op(int j) {
+			return ops[j];
+		}
+		
+		public int key(int j) {
+			return keys[j];
+		}
+		
+		// info of an insert, null for a delete
+		public String info(int j) {
+			return infos[j];
+		}
+		
+		/**
+		 * public void applyTo(AVLTree replica)
+		 *
+		 * replays the changes on replica, which must hold the items
+		 * of the source tree as of sequence(0)
+		 */
+		public void applyTo(AVLTree replica) {
+			
+			for (int j = 0; j < ops.length; j++) {
+				if (ops[j] == ChangeFeed.INSERT) {
+					replica.insert(keys[j], infos[j]);
+				}
+				else {
+					replica.delete(keys[j]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * public static class AVLTreeService
+	 *
+	 * A single writer front end for an AVL tree, for callers on many (virtual) threads.
+	 * insert and delete only queue a command and return a future; one writer
+	 * thread takes all the queued commands at once (a tick), applies them to
+	 * the tree, replays the tree's change feed on a persistent RcuAVLTree,
+	 * publishes it once and then completes their futures.
+	 * Reads go to the last published RcuAVLTree snapshot without locks, and see
+	 * every write whose future has completed.
+	 * A tick costs O(batch * log n): every change copies only its path.
+	 * If a tick makes more changes than the feed keeps (say a large window
+	 * eviction), the reads are copied from the tree once, in O(n).
+	 */
+	public static class AVLTreeService implements AutoCloseable {
+		
+		private static final int MAX_BATCH = 4096; // commands per tick
+		private static final int FEED_CAPACITY = 4 * MAX_BATCH; // changes kept for the reads, when the tree has no feed yet
+		private static final Command STOP = new Command(false, 0, null);
+		
+		private final AVLTree tree;
+		private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+		private final Thread writer;
+		private ChangeFeed.Subscription feed; // used by the writer only
+		private volatile RcuAVLTree reads;
+		private volatile boolean closed = false;
+		private volatile boolean drained = false; // the writer has stopped taking commands
+		
+		/**
+		 * AVLTreeService constructor - starts the writer thread of tree.
+		 * The tree must not be used directly afterwards.
+		 * @param tree
+		 */
+		public AVLTreeService(AVLTree tree) {
+			
+			this.tree = tree;
+			if (tree.getChangeFeed() == null) {
+				tree.setChangeFeed(FEED_CAPACITY);
+			}
+			copyTree();
+			this.writer = new Thread(this::run, "avl-tree-writer");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+		
+		/**
+		 * public CompletableFuture<Integer> insert(int k, String i)
+		 *
+		 * queues an insert; the future completes with the result of AVLTree.insert
+		 * once the insert is visible to the reads
+		 */
+		public CompletableFuture<Integer> insert(int k, String i) {
+			return submit(new Command(true, k, i));
+		}
+		
+		/**
+		 * public CompletableFuture<Integer> delete(int k)
+		 *
+		 * queues a delete; the future completes with the result of AVLTree.delete
+		 * once the delete is visible to the reads
+		 */
+		public CompletableFuture<Integer> delete(int k) {
+			return submit(new Command(false, k, null));
+		}
+		
+		public String search(int k) {
+			return reads.search(k);
+		}
+		
+		public String select(int i) {
+			return reads.select(i);
+		}
+		
+		/**
+		 * public int less(int i)
+		 *
+		 * Returns the sum of all keys which are less or equal to i.
+		 * Range updates are not in the change feed, so this sums keys, not values.
+		 */
+		public int less(int i) {
+			return reads.less(i);
+		}
+		
+		public int size() {
+			return reads.size();
+		}
+		
+		/**
+		 * public RcuAVLTree.Snapshot snapshot()
+		 *
+		 * Returns the last published state of the tree, for several reads
+		 * that must see the same state
+		 */
+		public RcuAVLTree.Snapshot snapshot() {
+			return reads.snapshot();
+		}
+		
+		/**
+		 * public void close()
+		 *
+		 * applies the commands queued so far, stops the writer and waits for it.
+		 * Commands queued after close fail with IllegalStateException.
+		 */
+		public void close() {
+			
+			closed = true;
+			queue.add(STOP);
+			try {
+				writer.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private CompletableFuture<Integer> submit(Command command) {
+			
+			if (closed) {
+				command.result.completeExceptionally(new IllegalStateException("service is closed"));
+				return command.result;
+			}
+			queue.add(command);
+			// the writer may have made its last pass over the queue in the meantime
+			if (drained && queue.remove(command)) {
+				command.result.completeExceptionally(new IllegalStateException("service is closed"));
+			}
+			return command.result;
+		}
+		
+		private void run() {
+			
+			List<Command> batch = new ArrayList<>();
+			boolean stop = false;
+			while (!stop) {
+				try {
+					batch.add(queue.take());
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (Command command : batch) {
+					if (command == STOP) {
+						stop = true;
+						continue;
+					}
+					try {
+						command.outcome = command.insert ? tree.insert(command.key, command.info) : tree.delete(command.key);
+					}
+					catch (RuntimeException e) {
+						command.failure = e;
+					}
+				}
+				publish();
+				for (Command command : batch) {
+					if (command.failure != null) {
+						command.result.completeExceptionally(command.failure);
+					}
+					else {
+						command.result.complete(command.outcome);
+					}
+				}
+				batch.clear();
+			}
+			drained = true;
+			Command command;
+			while ((command = queue.poll()) != null) {
+				command.result.completeExceptionally(new IllegalStateException("service is closed"));
+			}
+		}
+		
+		// replays the changes of the tick on the reads and publishes them at once
+		private void publish() {
+			
+			try {
+				reads.applyAll(feed.poll(Integer.MAX_VALUE));
+			}
+			catch (IllegalStateException e) {
+				copyTree(); // the tick outran the feed
+			}
+		}
+		
+		private void copyTree() {
+			
+			feed = tree.getChangeFeed().subscribe();
+			reads = RcuAVLTree.fromSorted(tree.keysToArray(), tree.infoToArray());
+		}
+		
+		private static class Command {
+			
+			private final boolean insert;
+			private final int key;
+			private final String info;
+			private final CompletableFuture<Integer> result = new CompletableFuture<>();
+			private int outcome;
+			private RuntimeException failure;
+			
+			Command(boolean insert, int key, String info) {
+				
+				this.insert = insert;
+				this.key = key;
+				this.info = info;
+			}
+		}
+	}
+	
+	/**
+	 * public static class RcuAVLTree
+	 *
+	 * An AVL tree with distinct integer keys and info for many readers and
+	 * writers taking turns. Nodes are never changed: a write copies the nodes on
+	 * its path (O(log n) new nodes) and publishes the new root, min and max as
+	 * one immutable Snapshot with a single release store. A read makes one
+	 * acquire load of the snapshot and walks it without locks or CAS, so reads
+	 * are wait-free and never see a half done write. Writes are serialized by
+	 * a lock. Old nodes are reclaimed by the garbage collector once no reader
+	 * holds a snapshot that reaches them, so no grace periods are needed.
+	 * AVLTree itself cannot publish its root this way: its nodes have parent
+	 * pointers, are rotated in place, reused by the node pool and rewritten
+	 * by lazy delete and by rebuild, so a reader could see them mid change.
+	 */
+	public static class RcuAVLTree {
+		
+		private static final VarHandle HEAD;
+		static {
+			try {
+				HEAD = MethodHandles.lookup().findVarHandle(RcuAVLTree.class, "head", Snapshot.class);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+		
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private Snapshot head = new Snapshot(null); // accessed through HEAD only
+		private int rotations; // of the write in progress, guarded by writeLock
+		
+		/**
+		 * public static RcuAVLTree fromSorted(int[] keys, String[] infos)
+		 *
+		 * Builds a balanced tree of the given items in O(n).
+		 * keys must be sorted and distinct.
+		 */
+		public static RcuAVLTree fromSorted(int[] keys, String[] infos) {
+			
+			if (keys.length != infos.length) {
+				throw new IllegalArgumentException("keys and infos differ in length");
+			}
+			for (int j = 1; j < keys.length; j++) {
+				if (keys[j] <= keys[j - 1]) {
+					throw new IllegalArgumentException("keys are not sorted and distinct at index " + j);
+				}
+			}
+			RcuAVLTree tree = new RcuAVLTree();
+			HEAD.setRelease(tree, new Snapshot(build(keys, infos, 0, keys.length - 1)));
+			return tree;
+		}
+		
+		private static Node build(int[] keys, String[] infos, int lo, int hi) {
+			
+			if (lo > hi) {
+				return null;
+			}
+			int mid = (lo + hi) >>> 1;
+			return new Node(keys[mid], infos[mid], build(keys, infos, lo, mid - 1), build(keys, infos, mid + 1, hi));
+		}
+		
+		/**
+		 * public Snapshot snapshot()
+		 *
+		 * Returns the current state of the tree, for several reads that
+		 * must see the same state. It is never changed by later writes.
+		 */
+		public Snapshot snapshot() {
+			return (Snapshot) HEAD.getAcquire(this);
+		}
+		
+		public boolean empty() {
+			return snapshot().empty();
+		}
+		
+		public int size() {
+			return snapshot().size();
+		}
+		
+		public String search(int k) {
+			return snapshot().search(k);
+		}
+		
+		public String select(int i) {
+			return snapshot().select(i);
+		}
+		
+		public int less(int i) {
+			return snapshot().less(i);
+		}
+		
+		public String min() {
+			return snapshot().min();
+		}
+		
+		public String max() {
+			return snapshot().max();
+		}
+		
+		public int[] keysToArray() {
+			return snapshot().keysToArray();
+		}
+		
+		public String[] infoToArray() {
+			return snapshot().infoToArray();
+		}
+		
+		/**
+		 * public Iterator<Map.Entry<Integer, String>> iterator()
+		 *
+		 * Returns the items of the current snapshot in key order; see Snapshot.iterator
+		 */
+		public Iterator<Map.Entry<Integer, String>> iterator() {
+			return snapshot().iterator();
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i and publishes the new state.
+		 * returns the number of rotations, or -1 if an item with key k already exists in the tree.
+		 */
+		public int insert(int k, String i) {
+			
+			writeLock.lock();
+			try {
+				rotations = 0;
+				Node root = snapshot().root;
+				Node updated = insert(root, k, i);
+				if (updated == root) {
+					return -1;
+				}
+				HEAD.setRelease(this, new Snapshot(updated));
+				return rotations;
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes the item with key k, if it is there, and publishes the new state.
+		 * returns the number of rotations, or -1 if k was not found in the tree.
+		 */
+		public int delete(int k) {
+			
+			writeLock.lock();
+			try {
+				rotations = 0;
+				Node root = snapshot().root;
+				Node updated = delete(root, k);
+				if (updated == root) {
+					return -1;
+				}
+				HEAD.setRelease(this, new Snapshot(updated));
+				return rotations;
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		
+		/**
+		 * public void applyAll(Changes changes)
+		 *
+		 * replays a batch of changes read from a ChangeFeed and publishes them
+		 * with one release store, so a reader sees all of them or none
+		 */
+		public void applyAll(Changes changes) {
+			
+			writeLock.lock();
+			try {
+				Node root = snapshot().root;
+				Node updated = root;
+				for (int j = 0; j < changes.size(); j++) {
+					if (changes.op(j) == ChangeFeed.INSERT) {
+						updated = insert(updated, changes.key(j), changes.info(j));
+					}
+					else {
+						updated = delete(updated, changes.key(j));
+					}
+				}
+				if (updated != root) {
+					HEAD.setRelease(this, new Snapshot(updated));
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		
+		// returns node itself if k is already in its subtree
+		private Node insert(Node node, int k, String info) {
+			
+			if (node == null) {
+				return new Node(k, info, null, null);
+			}
+			if (k < node.key) {
+				Node left = insert(node.left, k, info);
+				return left == node.left ? node : balance(node.key, node.info, left, node.right);
+			}
+			if (k > node.key) {
+				Node right = insert(node.right, k, info);
+				return right == node.right ? node : balance(node.key, node.info, node.left, right);
+			}
+			return node;
+		}
+		
+		// returns node itself if k is not in its subtree
+		private Node delete(Node node, int k) {
+			
+			if (node == null) {
+				return null;
+			}
+			if (k < node.key) {
+				Node left = delete(node.left, k);
+				return left == node.left ? node : balance(node.key, node.info, left, node.right);
+			}
+			if (k > node.key) {
+				Node right = delete(node.right, k);
+				return right == node.right ? node : balance(node.key, node.info, node.left, right);
+			}
+			if (node.left == null) {
+				return node.right;
+			}
+			if (node.right == null) {
+				return node.left;
+			}
+			// the successor's item takes the place of the deleted one
+			Node successor = node.right;
+			while (successor.left != null) {
+				successor = successor.left;
+			}
+			return balance(successor.key, successor.info, node.left, deleteMin(node.right));
+		}
+		
+		private Node deleteMin(Node node) {
+			
+			if (node.left == null) {
+				return node.right;
+			}
+			return balance(node.key, node.info, deleteMin(node.left), node.right);
+		}
+		
+		// a new node with the given item and children, rotated if they differ in height by 2
+		private Node balance(int key, String info, Node left, Node right) {
+			
+			int bf = height(left) - height(right);
+			if (bf > 1) {
+				if (height(left.left) < height(left.right)) {
+					left = rotateLeft(left.key, left.info, left.left, left.right);
+				}
+				return rotateRight(key, info, left, right);
+			}
+			if (bf < -1) {
+				if (height(right.right) < height(right.left)) {
+					right = rotateRight(right.key, right.info, right.left, right.right);
+				}
+				return rotateLeft(key, info, left, right);
+			}
+			return new Node(key, info, left, right);
+		}
+		
+		private Node rotateRight(int key, String info, Node left, Node right) {
+			
+			rotations++;
+			return new Node(left.key, left.info, left.left, new Node(key, info, left.right, right));
+		}
+		
+		private Node rotateLeft(int key, String info, Node left, Node right) {
+			
+			rotations++;
+			return new Node(right.key, right.info, new Node(key, info, left, right.left), right.right);
+		}
+		
+		private static int height(Node node) {
+			return node == null ? -1 : node.height;
+		}
+		
+		private static int size(Node node) {
+			return node == null ? 0 : node.size;
+		}
+		
+		private static int sum(Node node) {
+			return node == null ? 0 : node.sum;
+		}
+		
+		// an item of a snapshot; iterators return the nodes themselves as entries
+		private static final class Node implements Map.Entry<Integer, String> {
+			
+			private final int key;
+			private final String info;
+			private final Node left, right;
+			private final int height, size, sum;
+			
+			Node(int key, String info, Node left, Node right) {
+				
+				this.key = key;
+				this.info = info;
+				this.left = left;
+				this.right = right;
+				this.height = Math.max(height(left), height(right)) + 1;
+				this.size = size(left) + size(right) + 1;
+				this.sum = sum(left) + sum(right) + key;
+			}
+			
+			public Integer getKey() {
+				return key;
+			}
+			
+			public String getValue() {
+				return info;
+			}
+			
+			public String setValue(String value) {
+				throw new UnsupportedOperationException("snapshots are immutable");
+			}
+		}
+		
+		/**
+		 * public static final class Snapshot
+		 *
+		 * An immutable state of an RcuAVLTree: its root and its min and max nodes
+		 */
+		public static final class Snapshot implements Iterable<Map.Entry<Integer, String>> {
+			
+			private final Node root;
+			private final Node min, max;
+			
+			private Snapshot(Node root) {
+				
+				this.root = root;
+				Node node = root;
+				while (node != null && node.left != null) {
+					node = node.left;
+				}
+				this.min = node;
+				node = root;
+				while (node != null && node.right != null) {
+					node = node.right;
+				}
+				this.max = node;
+			}
+			
+			public boolean empty() {
+				return root == null;
+			}
+			
+			public int size() {
+				return RcuAVLTree.size(root);
+			}
+			
+			/**
+			 * public String search(int k)
+			 *
+			 * returns the info of an item with key k if it exists in the tree
+			 * otherwise, returns null
+			 */
+			public String search(int k) {
+				
+				Node node = root;
+				while (node != null && node.key != k) {
+					node = k < node.key ? node.left : node.right;
+				}
+				return node == null ? null : node.info;
+			}
+			
+			/**
+			 * public String select(int i)
+			 *
+			 * Returns the info of the i'th smallest key, or null if i is out of range
+			 */
+			public String select(int i) {
+				
+				if (i < 1 || i > size()) {
+					return null;
+				}
+				Node node = root;
+				while (true) {
+					int leftSize = RcuAVLTree.size(node.left);
+					if (i <= leftSize) {
+						node = node.left;
+					}
+					else if (i == leftSize + 1) {
+						return node.info;
+					}
+					else {
+						i -= leftSize + 1;
+						node = node.right;
+					}
+				}
+			}
+			
+			/**
+			 * public int less(int i)
+			 *
+			 * Returns the sum of all keys which are less or equal to i
+			 */
+			public int less(int i) {
+				
+				int sum = 0;
+				Node node = root;
+				while (node != null) {
+					if (node.key <= i) {
+						sum += RcuAVLTree.sum(node.left) + node.key;
+						node = node.right;
+					}
+					else {
+						node = node.left;
+					}
+				}
+				return sum;
+			}
+			
+			public String min() {
+				return min == null ? null : min.info;
+			}
+			
+			public String max() {
+				return max == null ? null : max.info;
+			}
+			
+			public int minKey() {
+				return min == null ? -1 : min.key;
+			}
+			
+			public int maxKey() {
+				return max == null ? -1 : max.key;
+			}
+			
+			public int[] keysToArray() {
+				
+				int[] keys = new int[size()];
+				keysInOrder(root, keys, 0);
+				return keys;
+			}
+			
+			public String[] infoToArray() {
+				
+				String[] infos = new String[size()];
+				infosInOrder(root, infos, 0);
+				return infos;
+			}
+			
+			/**
+			 * public Iterator<Map.Entry<Integer, String>> iterator()
+			 *
+			 * Returns the items in key order, as read-only entries. The iterator walks
+			 * the immutable nodes of this snapshot with its own stack of at most
+			 * height + 1 nodes, so it copies nothing and later writes do not affect it.
+			 */
+			@Override
+			public Iterator<Map.Entry<Integer, String>> iterator() {
+				return new InOrder(root);
+			}
+			
+			private static int keysInOrder(Node node, int[] keys, int i) {
+				
+				if (node != null) {
+					i = keysInOrder(node.left, keys, i);
+					keys[i++] = node.key;
+					i = keysInOrder(node.right, keys, i);
+				}
+				return i;
+			}
+			
+			// in-order walk: the stack holds the nodes whose left subtree is being visited
+			private static final class InOrder implements Iterator<Map.Entry<Integer, String>> {
+				
+				private final Node[] stack;
+				private int depth = 0;
+				
+				InOrder(Node root) {
+					
+					this.stack = new Node[height(root) + 1];
+					pushLeft(root);
+				}
+				
+				private void pushLeft(Node node) {
+					
+					while (node != null) {
+						stack[depth++] = node;
+						node = node.left;
+					}
+				}
+				
+				@Override
+				public boolean hasNext() {
+					return depth > 0;
+				}
+				
+				@Override
+				public Map.Entry<Integer, String> next() {
+					
+					if (depth == 0) {
+						throw new NoSuchElementException();
+					}
+					Node node = stack[--depth];
+					pushLeft(node.right);
+					return node;
+				}
+			}
+			
+			private static int infosInOrder(Node node, String[] infos, int i) {
+				
+				if (node != null) {
+					i = infosInOrder(node.left, infos, i);
+					infos[i++] = node.info;
+					i = infosInOrder(node.right, infos, i);
+				}
+				return i;
+			}
+		}
+	}
+	
+	/**
+	 * public static class StressHarness
+	 *
+	 * Differential stress test of the tree and its sibling classes against a TreeMap.
+	 * A random workload of inserts, deletes, searches, selects, less, floorKey,
+	 * ceilingKey and range updates is run on both, and every answer of the tree
+	 * is compared with the reference (select and less are answered by a Fenwick
+	 * array over the keys, which TreeMap cannot do, or by a walk of the value map
+	 * once range updates changed the values). Every CHECK_EVERY operations the whole
+	 * tree is checked: parent links, BST order, size, sum (through pending range
+	 * tags and tombstones), Merkle hashes, min and max, keys, infos and values
+	 * against the reference, the bytes kept off heap by the value store,
+	 * and the rank rule of the policy (AVL heights and balance factors,
+	 * WAVL rank differences 1 or 2, red-black no two 0 rank differences in a row).
+	 * Every policy runs the plain tree and then every mode (lazy delete, range
+	 * updates, sliding window, node pool, Merkle hashes, value store, and all of
+	 * them at once) on a workload of at most MODE_OPS operations.
+	 * Then BucketAVLTree, RcuAVLTree (with concurrent readers), ShardedAVLTree
+	 * (with concurrent writers and rebalances), DurableAVLTree recovery (from crash
+	 * images, stale logs and a torn record) and the parallel export and build are
+	 * checked, and the footprint of BucketAVLTree and the time of the parallel
+	 * methods are printed.
+	 * The plain workload is finally replayed without checks on the tree and the
+	 * reference, and their throughput is printed side by side.
+	 *
+	 * usage: java AVLTree$StressHarness [ops] [keyRange] [seed]
+	 */
+	public static class StressHarness {
+		
+		private static final int CHECK_EVERY = 1000;
+		private static final int MODE_OPS = 200000; // operations of a mode or a sibling class at most
+		private static final int INSERT = 0, DELETE = 1, SEARCH = 2, SELECT = 3, LESS = 4, FLOOR = 5, CEILING = 6, RANGE = 7;
+		private static final int LAZY = 1, TAGS = 2, WINDOW = 4, POOL = 8, MERKLE = 16, VALUES = 32;
+		private static final int[] MODES = {LAZY, TAGS, WINDOW, POOL, MERKLE, VALUES, LAZY | TAGS | WINDOW | POOL | MERKLE | VALUES};
+		private static final int OFF_HEAP_THRESHOLD = 16; // infos of the value store mode at least this long go off heap
+		private static final int FOOTPRINT_KEYS = 1000000;
+		
+		public static void main(String[] args) throws IOException, InterruptedException {
+			
+			int ops = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+			int keyRange = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+			long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+			int modeOps = Math.min(ops, MODE_OPS);
+			int[][] plain = workload(ops, keyRange, seed, false);
+			int[][] mixed = workload(modeOps, keyRange, seed + 1, true);
+			BalancePolicy[] policies = {AVL, WAVL, RED_BLACK};
+			String[] names = {"AVL", "WAVL", "red-black"};
+			for (int p = 0; p < policies.length; p++) {
+				differential(policies[p], 0, plain[0], plain[1], keyRange);
+				for (int mode : MODES) {
+					differential(policies[p], mode, mixed[0], mixed[1], keyRange);
+				}
+				System.out.printf("%-9s checked: %d plain ops, %d ops in each of %d modes%n", names[p], ops, modeOps, MODES.length);
+			}
+			checkBucket(modeOps, keyRange, seed);
+			checkRcu(modeOps, keyRange, seed);
+			checkSharded(modeOps, keyRange, seed);
+			checkDurable(seed);
+			checkParallel(seed);
+			footprint();
+			for (int p = 0; p < policies.length; p++) {
+				long treeNanos = Long.MAX_VALUE, referenceNanos = Long.MAX_VALUE;
+				for (int round = 0; round < 3; round++) { // the best of 3, after the JIT warmed up
+					long start = System.nanoTime();
+					runTree(policies[p], plain[0], plain[1]);
+					treeNanos = Math.min(treeNanos, System.nanoTime() - start);
+					start = System.nanoTime();
+					runReference(plain[0], plain[1], keyRange);
+					referenceNanos = Math.min(referenceNanos, System.nanoTime() - start);
+				}
+				System.out.printf("%-9s %d ops, keys in [0, %d): tree %.2f Mops/s, TreeMap %.2f Mops/s%n",
+						names[p], ops, keyRange, ops * 1e3 / treeNanos, ops * 1e3 / referenceNanos);
+			}
+		}
+		
+		// operation codes and keys; range updates take one of the 20 slots when asked for
+		private static int[][] workload(int ops, int keyRange, long seed, boolean ranges) {
+			
+			int[] codes = new int[ops];
+			int[] keys = new int[ops];
+			Random random = new Random(seed);
+			for (int n = 0; n < ops; n++) {
+				int c = random.nextInt(20);
+				// 40% insert, 30% delete, 10% search, 5% each of the queries by rank and by key
+				codes[n] = c < 8 ? INSERT : c < 14 ? DELETE : c < 16 ? SEARCH : c < 17 ? SELECT : c < 18 ? LESS : c < 19 ? FLOOR : CEILING;
+				if (ranges && c == 15) {
+					codes[n] = RANGE;
+				}
+				keys[n] = random.nextInt(keyRange);
+			}
+			return new int[][] {codes, keys};
+		}
+		
+		private static AVLTree newTree(BalancePolicy policy, int mode, int keyRange) {
+			
+			AVLTree tree = new AVLTree(policy);
+			if ((mode & LAZY) != 0) {
+				tree.setLazyDelete(true, 0.3);
+			}
+			if ((mode & WINDOW) != 0) {
+				tree.setWindow(windowSize(keyRange), windowAge(keyRange));
+			}
+			if ((mode & POOL) != 0) {
+				tree.setNodePool(64);
+			}
+			if ((mode & MERKLE) != 0) {
+				tree.setMerkle(true);
+			}
+			if ((mode & VALUES) != 0) {
+				tree.setValueStore(new ValueStore(OFF_HEAP_THRESHOLD, 64));
+			}
+			return tree;
+		}
+		
+		private static int windowSize(int keyRange) {
+			return Math.max(1, keyRange / 4);
+		}
+		
+		private static int windowAge(int keyRange) {
+			return Math.max(1, keyRange / 2);
+		}
+		
+		// repeated short infos and unique long ones in the value store mode
+		private static String info(int mode, int k, int n) {
+			
+			if ((mode & VALUES) == 0) {
+				return "v" + k;
+			}
+			return n % 3 == 0 ? "info of " + k + " written by operation " + n : "v" + k % 5;
+		}
+		
+		// runs the workload on a tree in the given mode and on the reference, comparing every answer
+		private static void differential(BalancePolicy policy, int mode, int[] codes, int[] keys, int keyRange) {
+			
+			AVLTree tree = newTree(policy, mode, keyRange);
+			TreeMap<Integer, String> map = new TreeMap<>();
+			TreeMap<Integer, Integer> values = new TreeMap<>();
+			Fenwick ranks = new Fenwick(keyRange);
+			boolean tagged = false; // some value is no longer its key
+			for (int n = 0; n < codes.length; n++) {
+				int k = keys[n];
+				String what = "mode " + mode + ", ";
+				switch (codes[n]) {
+				case INSERT:
+					String info = info(mode, k, n);
+					boolean fresh = !map.containsKey(k);
+					expect(n, what + "insert " + k, !fresh, tree.insert(k, info) == -1);
+					if (fresh) {
+						map.put(k, info);
+						values.put(k, k);
+						ranks.add(k, 1);
+						while ((mode & WINDOW) != 0 && (map.size() > windowSize(keyRange) || map.lastKey() - map.firstKey() > windowAge(keyRange))) {
+							int evicted = map.firstKey();
+							map.remove(evicted);
+							values.remove(evicted);
+							ranks.add(evicted, -1);
+						}
+					}
+					break;
+				case DELETE:
+					IAVLNode held = tree.getRoot(); // a node held by a caller keeps its key unless compaction rebuilds
+					int heldKey = held == null ? k : held.getKey();
+					expect(n, what + "delete " + k, !map.containsKey(k), tree.delete(k) == -1);
+					if ((mode & LAZY) == 0 && heldKey != k) {
+						expect(n, what + "key of the node held at the root", heldKey, held.getKey());
+					}
+					if (map.remove(k) != null) {
+						values.remove(k);
+						ranks.add(k, -1);
+					}
+					break;
+				case SEARCH:
+					expect(n, what + "search " + k, map.get(k), tree.search(k));
+					break;
+				case SELECT:
+					if (!map.isEmpty()) {
+						int i = 1 + k % map.size();
+						expect(n, what + "select " + i, map.get(ranks.select(i)), tree.select(i));
+					}
+					break;
+				case LESS:
+					expect(n, what + "less " + k, tagged ? sumValues(values, k) : ranks.sum(k), tree.less(k));
+					break;
+				case FLOOR:
+					Integer floor = map.floorKey(k);
+					expect(n, what + "floorKey " + k, floor == null ? -1 : floor, tree.floorKey(k));
+					break;
+				case CEILING:
+					Integer ceiling = map.ceilingKey(k);
+					expect(n, what + "ceilingKey " + k, ceiling == null ? -1 : ceiling, tree.ceilingKey(k));
+					break;
+				default:
+					if ((mode & TAGS) != 0) {
+						rangeUpdate(n, tree, values, k, k + n % 64);
+						tagged = true;
+					}
+				}
+				expect(n, what + "size", map.size(), tree.size());
+				if (n % CHECK_EVERY == 0 || n == codes.length - 1) {
+					checkTree(n, tree, map, values);
+				}
+			}
+		}
+		
+		// a range add or a range scale on [lo, hi], on the tree and on the value map
+		private static void rangeUpdate(int n, AVLTree tree, TreeMap<Integer, Integer> values, int lo, int hi) {
+			
+			if (n % 2 == 0) {
+				int delta = n % 7 - 3;
+				tree.rangeAdd(lo, hi, delta);
+				for (Map.Entry<Integer, Integer> e : values.subMap(lo, true, hi, true).entrySet()) {
+					e.setValue(e.getValue() + delta);
+				}
+			}
+			else {
+				int factor = n % 3 - 1;
+				tree.rangeScale(lo, hi, factor);
+				for (Map.Entry<Integer, Integer> e : values.subMap(lo, true, hi, true).entrySet()) {
+					e.setValue(e.getValue() * factor);
+				}
+			}
+		}
+		
+		private static int sumValues(TreeMap<Integer, Integer> values, int k) {
+			
+			int sum = 0;
+			for (int value : values.headMap(k, true).values()) {
+				sum += value;
+			}
+			return sum;
+		}
+		
+		private static void expect(int n, String what, Object expected, Object actual) {
+			
+			if (!Objects.equals(expected, actual)) {
+				throw new IllegalStateException("operation " + n + ", " + what + ": expected " + expected + ", got " + actual);
+			}
+		}
+		
+		private static void checkTree(int n, AVLTree tree, TreeMap<Integer, String> map, TreeMap<Integer, Integer> values) {
+			
+			IAVLNode root = tree.root;
+			if (root.getParent() != null) {
+				throw new IllegalStateException("operation " + n + ": the root has a parent");
+			}
+			expect(n, "tombstones", tree.tombstones, check(n, tree, root, Long.MIN_VALUE, Long.MAX_VALUE));
+			expect(n, "minKey", map.isEmpty() ? -1 : map.firstKey(), tree.minKey());
+			expect(n, "maxKey", map.isEmpty() ? -1 : map.lastKey(), tree.maxKey());
+			expect(n, "keys", true, Arrays.equals(map.keySet().stream().mapToInt(Integer::intValue).toArray(), tree.keysToArray()));
+			expect(n, "infos", true, Arrays.equals(map.values().toArray(new String[0]), tree.infoToArray()));
+			expect(n, "values", true, Arrays.equals(values.values().stream().mapToInt(Integer::intValue).toArray(), tree.valuesToArray()));
+			if (tree.valueStore != null) {
+				long offHeap = 0;
+				for (String info : map.values()) {
+					if (info != null && info.length() >= OFF_HEAP_THRESHOLD) {
+						offHeap += info.getBytes(StandardCharsets.UTF_8).length;
+					}
+				}
+				expect(n, "off-heap bytes", offHeap, tree.valueStore.offHeapBytes());
+			}
+		}
 		
 		/**
-		 * AVLNode constructor - create a node with key and info
-		 * @param key
-		 * @param info
+		 * checks the subtree of node, whose keys must be in (lo, hi)
+		 * @return number of tombstones in the subtree
 		 */
-		public AVLNode(int key, String info) {
+		private static int check(int n, AVLTree tree, IAVLNode node, long lo, long hi) {
 			
-			if (key != -1) {
-				this.key = key;
-				this.info = info;
-				this.right = new AVLNode(-1, null);
-				this.left = new AVLNode(-1, null);
-				this.height = 0;
-				this.size = 1;
-				this.sum = key;
+			if (!node.isRealNode()) {
+				if (node.getHeight() != -1 || node.getSubtreeSize() != 0 || node.getSum() != 0) {
+					throw new IllegalStateException("operation " + n + ": virtual node with a rank, size or sum");
+				}
+				return 0;
+			}
+			AVLNode real = (AVLNode) node;
+			int k = node.getKey();
+			IAVLNode left = node.getLeft(), right = node.getRight();
+			if (k <= lo || k >= hi) {
+				throw new IllegalStateException("operation " + n + ": key " + k + " breaks the BST order");
+			}
+			if ((left.isRealNode() && left.getParent() != node) || (right.isRealNode() && right.getParent() != node)) {
+				throw new IllegalStateException("operation " + n + ": wrong parent link under " + k);
+			}
+			int tombstones = check(n, tree, left, lo, k) + check(n, tree, right, k, hi);
+			boolean live = !real.isDeleted();
+			if (node.getSubtreeSize() != left.getSubtreeSize() + right.getSubtreeSize() + (live ? 1 : 0)) {
+				throw new IllegalStateException("operation " + n + ": wrong size at " + k);
+			}
+			// the children's sums do not have the node's pending range tag yet
+			int scaleTag = node instanceof RangeNode ? ((RangeNode) node).scaleTag : 1;
+			int shiftTag = node instanceof RangeNode ? ((RangeNode) node).shiftTag : 0;
+			int sum = scaleTag * (left.getSum() + right.getSum()) + shiftTag * (left.getSubtreeSize() + right.getSubtreeSize()) + (live ? real.getNodeValue() : 0);
+			if (node.getSum() != sum) {
+				throw new IllegalStateException("operation " + n + ": wrong sum at " + k);
+			}
+			if (tree.merkle != node instanceof MerkleNode || (tree.ranged || tree.merkle) != node instanceof RangeNode) {
+				throw new IllegalStateException("operation " + n + ": node " + k + " is of the wrong kind for the Merkle or range mode");
+			}
+			if (tree.merkle && ((MerkleNode) node).getHash() != hashOf(left) + hashOf(right) + tree.liveHash(node)) {
+				throw new IllegalStateException("operation " + n + ": wrong hash at " + k);
+			}
+			int dl = node.getHeight() - left.getHeight(), dr = node.getHeight() - right.getHeight();
+			boolean valid;
+			if (tree.policy == AVL) {
+				valid = Math.min(dl, dr) == 1 && Math.max(dl, dr) <= 2;
+			}
+			else if (tree.policy == WAVL) {
+				valid = dl >= 1 && dl <= 2 && dr >= 1 && dr <= 2 && (left.isRealNode() || right.isRealNode() || node.getHeight() == 0);
 			}
 			else {
-				this.key = -1;
-				this.info = null;
-				this.height = -1;
-				this.size = 0;
-				this.sum = 0;
+				valid = dl >= 0 && dl <= 1 && dr >= 0 && dr <= 1 && (dl == 1 || isBlack(left)) && (dr == 1 || isBlack(right));
 			}
+			if (!valid) {
+				throw new IllegalStateException("operation " + n + ": rank rule broken at " + k + " (rank differences " + dl + ", " + dr + ")");
+			}
+			return tombstones + (live ? 0 : 1);
 		}
 		
-		public int getKey()
-		{
-			if (this.isRealNode()) {
-				return key;
-			}
-			return -1;
+		// true if no child of node has rank difference 0
+		private static boolean isBlack(IAVLNode node) {
+			return node.getHeight() != node.getLeft().getHeight() && node.getHeight() != node.getRight().getHeight();
 		}
 		
-		public String getValue()
-		{
-			return info;
+		// BucketAVLTree with tiny buckets (many splits and repacks) and with the default ones
+		private static void checkBucket(int ops, int keyRange, long seed) {
+			
+			for (int bucketSize : new int[] {4, BucketAVLTree.DEFAULT_BUCKET_SIZE}) {
+				BucketAVLTree tree = new BucketAVLTree(bucketSize);
+				TreeMap<Integer, String> map = new TreeMap<>();
+				Fenwick ranks = new Fenwick(keyRange);
+				Random random = new Random(seed);
+				for (int n = 0; n < ops; n++) {
+					int k = random.nextInt(keyRange);
+					int c = random.nextInt(10);
+					String what = "bucket " + bucketSize + ", ";
+					if (c < 4) {
+						String info = n % 4 == 0 ? null : "v" + k; // buckets keep no infos until one is not null
+						boolean fresh = !map.containsKey(k);
+						expect(n, what + "insert " + k, !fresh, tree.insert(k, info) == -1);
+						if (fresh) {
+							map.put(k, info);
+							ranks.add(k, 1);
+						}
+					}
+					else if (c < 7) {
+						boolean present = map.containsKey(k);
+						expect(n, what + "delete " + k, !present, tree.delete(k) == -1);
+						if (present) {
+							map.remove(k);
+							ranks.add(k, -1);
+						}
+					}
+					else if (c == 7) {
+						expect(n, what + "search " + k, map.get(k), tree.search(k));
+					}
+					else if (c == 8) {
+						if (!map.isEmpty()) {
+							int i = 1 + k % map.size();
+							expect(n, what + "select " + i, map.get(ranks.select(i)), tree.select(i));
+						}
+					}
+					else {
+						expect(n, what + "less " + k, ranks.sum(k), tree.less(k));
+					}
+					expect(n, what + "size", map.size(), tree.size());
+					if (n % CHECK_EVERY == 0 || n == ops - 1) {
+						expect(n, what + "keys", true, Arrays.equals(map.keySet().stream().mapToInt(Integer::intValue).toArray(), tree.keysToArray()));
+						expect(n, what + "infos", true, Arrays.equals(map.values().toArray(new String[0]), tree.infoToArray()));
+						expect(n, what + "minKey", map.isEmpty() ? -1 : map.firstKey(), tree.minKey());
+						expect(n, what + "maxKey", map.isEmpty() ? -1 : map.lastKey(), tree.maxKey());
+						expect(n, what + "min", map.isEmpty() ? null : map.firstEntry().getValue(), tree.min());
+						expect(n, what + "max", map.isEmpty() ? null : map.lastEntry().getValue(), tree.max());
+					}
+				}
+				// ascending inserts move only the new largest key out of a full bucket
+				BucketAVLTree ascending = new BucketAVLTree(bucketSize);
+				for (int k = 0; k < ops / 4; k++) {
+					ascending.insert(k, "v" + k);
+				}
+				for (int k = 0; k < ops / 4; k += 2) {
+					ascending.delete(k);
+				}
+				for (int i = 1; i <= ascending.size(); i += 97) {
+					expect(i, "ascending bucket " + bucketSize + ", select " + i, "v" + (2 * i - 1), ascending.select(i));
+				}
+			}
+			System.out.printf("BucketAVLTree checked: %d ops with buckets of 4 and %d%n", ops, BucketAVLTree.DEFAULT_BUCKET_SIZE);
 		}
 		
-		public void setLeft(IAVLNode node)
-		{
-			left = node;
+		// RcuAVLTree against the reference while readers check the snapshots they get
+		private static void checkRcu(int ops, int keyRange, long seed) throws InterruptedException {
+			
+			RcuAVLTree tree = new RcuAVLTree();
+			AtomicBoolean done = new AtomicBoolean(false);
+			AtomicReference<String> failure = new AtomicReference<>();
+			Thread[] readers = new Thread[2];
+			for (int r = 0; r < readers.length; r++) {
+				readers[r] = new Thread(() -> {
+					while (!done.get() && failure.get() == null) {
+						String problem = checkSnapshot(tree.snapshot());
+						if (problem != null) {
+							failure.set(problem);
+						}
+					}
+				});
+				readers[r].start();
+			}
+			TreeMap<Integer, String> map = new TreeMap<>();
+			Fenwick ranks = new Fenwick(keyRange);
+			Random random = new Random(seed);
+			try {
+				for (int n = 0; n < ops; n++) {
+					int k = random.nextInt(keyRange);
+					int c = random.nextInt(10);
+					if (c < 4) {
+						boolean fresh = !map.containsKey(k);
+						expect(n, "rcu insert " + k, !fresh, tree.insert(k, "v" + k) == -1);
+						if (fresh) {
+							map.put(k, "v" + k);
+							ranks.add(k, 1);
+						}
+					}
+					else if (c < 7) {
+						boolean present = map.containsKey(k);
+						expect(n, "rcu delete " + k, !present, tree.delete(k) == -1);
+						if (present) {
+							map.remove(k);
+							ranks.add(k, -1);
+						}
+					}
+					else if (c == 7) {
+						expect(n, "rcu search " + k, map.get(k), tree.search(k));
+					}
+					else if (c == 8) {
+						if (!map.isEmpty()) {
+							int i = 1 + k % map.size();
+							expect(n, "rcu select " + i, map.get(ranks.select(i)), tree.select(i));
+						}
+					}
+					else {
+						expect(n, "rcu less " + k, ranks.sum(k), tree.less(k));
+					}
+					expect(n, "rcu size", map.size(), tree.size());
+					if (n % CHECK_EVERY == 0 || n == ops - 1) {
+						checkRcuNode(n, tree.snapshot().root, Long.MIN_VALUE, Long.MAX_VALUE);
+						expect(n, "rcu keys", true, Arrays.equals(map.keySet().stream().mapToInt(Integer::intValue).toArray(), tree.keysToArray()));
+						expect(n, "rcu min", map.isEmpty() ? null : map.firstEntry().getValue(), tree.min());
+						expect(n, "rcu max", map.isEmpty() ? null : map.lastEntry().getValue(), tree.max());
+					}
+				}
+			}
+			finally {
+				done.set(true);
+				for (Thread reader : readers) {
+					reader.join();
+				}
+			}
+			if (failure.get() != null) {
+				throw new IllegalStateException("rcu reader: " + failure.get());
+			}
+			// a replica fed by the change feed of an AVLTree, a batch at a time
+			AVLTree source = new AVLTree();
+			ChangeFeed feed = source.setChangeFeed(4 * CHECK_EVERY);
+			ChangeFeed.Subscription subscription = feed.subscribe();
+			RcuAVLTree replica = RcuAVLTree.fromSorted(new int[0], new String[0]);
+			for (int n = 0; n < ops; n++) {
+				int k = random.nextInt(keyRange);
+				if (random.nextInt(3) > 0) {
+					source.insert(k, "v" + k);
+				}
+				else {
+					source.delete(k);
+				}
+				if (n % CHECK_EVERY == 0 || n == ops - 1) {
+					replica.applyAll(subscription.poll(Integer.MAX_VALUE));
+					expect(n, "rcu replica keys", true, Arrays.equals(source.keysToArray(), replica.keysToArray()));
+					expect(n, "rcu replica infos", true, Arrays.equals(source.infoToArray(), replica.infoToArray()));
+				}
+			}
+			System.out.printf("RcuAVLTree checked: %d ops with %d concurrent readers, and a replica fed by a change feed%n", ops, readers.length);
 		}
 		
-		public IAVLNode getLeft()
-		{
-			if (!this.isRealNode()) {
-				return null;
+		// a reader's check of one snapshot: sorted keys that agree with size, min, max, search, select and less
+		private static String checkSnapshot(RcuAVLTree.Snapshot snapshot) {
+			
+			int[] keys = snapshot.keysToArray();
+			if (keys.length != snapshot.size()) {
+				return "size " + snapshot.size() + " of " + keys.length + " keys";
 			}
-			return left;
+			if (keys.length > 0 && (keys[0] != snapshot.minKey() || keys[keys.length - 1] != snapshot.maxKey())) {
+				return "min or max key";
+			}
+			int sum = 0;
+			for (int j = 0; j < keys.length; j++) {
+				if (j > 0 && keys[j - 1] >= keys[j]) {
+					return "keys out of order at " + j;
+				}
+				sum += keys[j];
+				if (j % 31 == 0 && (!("v" + keys[j]).equals(snapshot.search(keys[j])) || !("v" + keys[j]).equals(snapshot.select(j + 1)) || snapshot.less(keys[j]) != sum)) {
+					return "search, select or less of " + keys[j];
+				}
+			}
+			int j = 0;
+			for (Map.Entry<Integer, String> item : snapshot) {
+				if (j == keys.length || item.getKey() != keys[j] || !("v" + keys[j]).equals(item.getValue())) {
+					return "iterator at " + j;
+				}
+				j++;
+			}
+			if (j != keys.length) {
+				return "iterator stopped at " + j + " of " + keys.length;
+			}
+			return null;
 		}
 		
-		public void setRight(IAVLNode node)
-		{
-			right = node;
+		// AVL heights, sizes, sums and BST order of a persistent subtree
+		private static int checkRcuNode(int n, RcuAVLTree.Node node, long lo, long hi) {
+			
+			if (node == null) {
+				return -1;
+			}
+			if (node.key <= lo || node.key >= hi) {
+				throw new IllegalStateException("operation " + n + ": rcu key " + node.key + " breaks the BST order");
+			}
+			int hl = checkRcuNode(n, node.left, lo, node.key);
+			int hr = checkRcuNode(n, node.right, node.key, hi);
+			if (node.height != Math.max(hl, hr) + 1 || Math.abs(hl - hr) > 1) {
+				throw new IllegalStateException("operation " + n + ": rcu height or balance broken at " + node.key);
+			}
+			if (node.size != RcuAVLTree.size(node.left) + RcuAVLTree.size(node.right) + 1
+					|| node.sum != RcuAVLTree.sum(node.left) + RcuAVLTree.sum(node.right) + node.key) {
+				throw new IllegalStateException("operation " + n + ": rcu size or sum broken at " + node.key);
+			}
+			return node.height;
 		}
 		
-		public IAVLNode getRight()
-		{
-			if (!this.isRealNode()) {
-				return null;
+		// ShardedAVLTree with writers on disjoint keys, forced rebalances, then a sequential replay
+		private static void checkSharded(int ops, int keyRange, long seed) throws InterruptedException {
+			
+			int writers = 4;
+			ShardedAVLTree tree = new ShardedAVLTree(writers);
+			AtomicReference<String> failure = new AtomicReference<>();
+			Thread[] threads = new Thread[writers];
+			for (int w = 0; w < writers; w++) {
+				int writer = w;
+				threads[w] = new Thread(() -> {
+					Random random = new Random(seed + writer);
+					for (int n = 0; n < ops / writers && failure.get() == null; n++) {
+						int k = random.nextInt(keyRange) * writers + writer; // no other writer touches k
+						if (random.nextInt(3) > 0) {
+							tree.insert(k, "v" + k);
+							if (!("v" + k).equals(tree.search(k))) {
+								failure.set("writer " + writer + " lost its insert of " + k);
+							}
+						}
+						else {
+							tree.delete(k);
+							if (tree.search(k) != null) {
+								failure.set("writer " + writer + " still finds its deleted " + k);
+							}
+						}
+						tree.select(1 + k % 16);
+						tree.less(k);
+						if (writer == 0 && n % CHECK_EVERY == 0) {
+							tree.rebalance();
+						}
+					}
+				});
+				threads[w].start();
 			}
-			return right;
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			if (failure.get() != null) {
+				throw new IllegalStateException("sharded: " + failure.get());
+			}
+			TreeMap<Integer, String> map = new TreeMap<>();
+			for (int w = 0; w < writers; w++) {
+				Random random = new Random(seed + w);
+				for (int n = 0; n < ops / writers; n++) {
+					int k = random.nextInt(keyRange) * writers + w;
+					if (random.nextInt(3) > 0) {
+						map.put(k, "v" + k);
+					}
+					else {
+						map.remove(k);
+					}
+				}
+			}
+			expect(ops, "sharded size", map.size(), tree.size());
+			int i = 1;
+			int sum = 0;
+			for (Map.Entry<Integer, String> e : map.entrySet()) {
+				sum += e.getKey();
+				expect(ops, "sharded select " + i, e.getValue(), tree.select(i));
+				expect(ops, "sharded less " + e.getKey(), sum, tree.less(e.getKey()));
+				i++;
+			}
+			System.out.printf("ShardedAVLTree checked: %d ops by %d concurrent writers with rebalances%n", ops, writers);
 		}
 		
-		public void setParent(IAVLNode node)
-		{
-			parent = node;
+		// DurableAVLTree recovery from crash images, from stale logs next to a newer snapshot, and past a torn record
+		private static void checkDurable(long seed) throws IOException {
+			
+			Path base = Files.createTempDirectory("avl-harness");
+			try {
+				Path dir = base.resolve("live");
+				DurableAVLTree tree = new DurableAVLTree(dir, 4096, 8);
+				TreeMap<Integer, String> map = new TreeMap<>();
+				Random random = new Random(seed);
+				Path older = null;
+				int images = 0;
+				for (int n = 0; n < 20000; n++) {
+					int k = random.nextInt(500);
+					if (random.nextInt(3) > 0) {
+						String info = "v" + k + "." + n;
+						if (tree.insert(k, info) != -1) {
+							map.put(k, info);
+						}
+					}
+					else if (tree.delete(k) != -1) {
+						map.remove(k);
+					}
+					if (n % 2000 == 1999) {
+						// every record appended so far is in the page cache, so the copy holds all of them
+						Path newer = copyImage(dir, base.resolve("older" + n));
+						expectRecovered(n, "crash image", copyImage(dir, base.resolve("image" + n)), map);
+						if (older != null) {
+							tree.checkpoint();
+							Path stale = copyImage(dir, base.resolve("stale" + n));
+							for (int seg = 0; seg < 2; seg++) {
+								Path log = older.resolve(DurableAVLTree.LOG_FILE + "." + seg);
+								if (Files.exists(log)) {
+									Files.copy(log, stale.resolve(log.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+								}
+							}
+							expectRecovered(n, "stale log", stale, map);
+						}
+						older = newer;
+						images++;
+					}
+				}
+				tree.close();
+				expectRecovered(20000, "reopen", dir, map);
+				
+				// flips a byte of every kth record: recovery keeps exactly the records before it
+				Path torn = base.resolve("torn");
+				tree = new DurableAVLTree(torn, 1 << 20, 1);
+				List<int[]> keyStates = new ArrayList<>();
+				List<String[]> infoStates = new ArrayList<>();
+				List<Integer> ends = new ArrayList<>();
+				map.clear();
+				keyStates.add(new int[0]);
+				infoStates.add(new String[0]);
+				int end = 0;
+				for (int n = 0; n < 400; n++) {
+					int k = random.nextInt(100);
+					String info = "v" + k + "." + n;
+					int length;
+					if (random.nextInt(3) > 0) {
+						if (tree.insert(k, info) == -1) {
+							continue;
+						}
+						map.put(k, info);
+						length = DurableAVLTree.RECORD_OVERHEAD + info.length();
+					}
+					else {
+						if (tree.delete(k) == -1) {
+							continue;
+						}
+						map.remove(k);
+						length = DurableAVLTree.RECORD_OVERHEAD;
+					}
+					end += length;
+					ends.add(end);
+					keyStates.add(map.keySet().stream().mapToInt(Integer::intValue).toArray());
+					infoStates.add(map.values().toArray(new String[0]));
+				}
+				tree.sync();
+				for (int record = 0; record < ends.size(); record += 37) {
+					Path image = copyImage(torn, base.resolve("torn" + record));
+					int start = record == 0 ? 0 : ends.get(record - 1);
+					int offset = start + random.nextInt(ends.get(record) - start);
+					try (FileChannel channel = FileChannel.open(image.resolve(DurableAVLTree.LOG_FILE + ".0"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+						ByteBuffer b = ByteBuffer.allocate(1);
+						channel.read(b, offset);
+						b.put(0, (byte) ~b.get(0)).position(0);
+						channel.write(b, offset);
+					}
+					TreeMap<Integer, String> expected = new TreeMap<>();
+					for (int j = 0; j < keyStates.get(record).length; j++) {
+						expected.put(keyStates.get(record)[j], infoStates.get(record)[j]);
+					}
+					expectRecovered(record, "torn record", image, expected);
+				}
+				tree.close();
+				System.out.printf("DurableAVLTree checked: recovery from %d crash images, stale logs and torn records%n", images);
+			}
+			finally {
+				deleteRecursively(base);
+			}
 		}
 		
-		public IAVLNode getParent()
-		{
-			if (parent == null) {
-				return null;
+		private static void expectRecovered(int n, String what, Path dir, TreeMap<Integer, String> map) throws IOException {
+			
+			DurableAVLTree recovered = new DurableAVLTree(dir, 4096, 8);
+			try {
+				expect(n, what + " keys", true, Arrays.equals(map.keySet().stream().mapToInt(Integer::intValue).toArray(), recovered.keysToArray()));
+				expect(n, what + " infos", true, Arrays.equals(map.values().toArray(new String[0]), recovered.infoToArray()));
+			}
+			finally {
+				recovered.close();
 			}
-			return parent; 
 		}
 		
-		// Returns True if this is a non-virtual AVL node
-		public boolean isRealNode()
-		{
-			if(this == null || key == -1) {
-				return false;
+		// copies the snapshot and the log segments, as a crash would leave them
+		private static Path copyImage(Path dir, Path to) throws IOException {
+			
+			Files.createDirectories(to);
+			for (String name : new String[] {DurableAVLTree.SNAPSHOT_FILE, DurableAVLTree.LOG_FILE + ".0", DurableAVLTree.LOG_FILE + ".1"}) {
+				if (Files.exists(dir.resolve(name))) {
+					Files.copy(dir.resolve(name), to.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+				}
 			}
-			return true;
+			return to;
 		}
 		
-		public void setSubtreeSize(int size)
-		{
-			this.size = size;
+		private static void deleteRecursively(Path path) throws IOException {
+			
+			if (Files.isDirectory(path)) {
+				try (java.util.stream.Stream<Path> children = Files.list(path)) {
+					for (Path child : (Iterable<Path>) children::iterator) {
+						deleteRecursively(child);
+					}
+				}
+			}
+			Files.deleteIfExists(path);
 		}
 		
-		public int getSubtreeSize()
-		{
-			return size;
+		// the fork-join export and build against the sequential ones, on trees past the task grain
+		private static void checkParallel(long seed) {
+			
+			int size = 16 * ExportTask.GRAIN;
+			Random random = new Random(seed);
+			for (BalancePolicy policy : new BalancePolicy[] {AVL, WAVL, RED_BLACK}) {
+				AVLTree tree = new AVLTree(policy);
+				for (int n = 0; n < size; n++) {
+					tree.insert(random.nextInt(4 * size), "v" + n);
+				}
+				tree.setLazyDelete(true, 0.3);
+				for (int n = 0; n < size / 4; n++) {
+					tree.delete(random.nextInt(4 * size));
+				}
+				expect(size, "keysToArrayParallel", true, Arrays.equals(tree.keysToArray(), tree.keysToArrayParallel()));
+				expect(size, "infoToArrayParallel", true, Arrays.equals(tree.infoToArray(), tree.infoToArrayParallel()));
+				int[] keys = tree.keysToArray();
+				String[] infos = tree.infoToArray();
+				AVLTree built = fromSorted(policy, keys, infos);
+				TreeMap<Integer, String> map = new TreeMap<>();
+				TreeMap<Integer, Integer> values = new TreeMap<>();
+				for (int j = 0; j < keys.length; j++) {
+					map.put(keys[j], infos[j]);
+					values.put(keys[j], keys[j]);
+				}
+				checkTree(size, built, map, values);
+				for (int n = 0; n < size / 4; n++) {
+					int k = random.nextInt(4 * size);
+					if (n % 2 == 0 && built.insert(k, "w" + k) != -1) {
+						map.put(k, "w" + k);
+						values.put(k, k);
+					}
+					else if (n % 2 == 1 && built.delete(k) != -1) {
+						map.remove(k);
+						values.remove(k);
+					}
+				}
+				checkTree(size, built, map, values);
+			}
+			int[] keys = new int[FOOTPRINT_KEYS];
+			String[] infos = new String[FOOTPRINT_KEYS];
+			for (int j = 0; j < keys.length; j++) {
+				keys[j] = j;
+				infos[j] = "v";
+			}
+			long sequentialBuild = Long.MAX_VALUE, parallelBuild = Long.MAX_VALUE;
+			long sequentialExport = Long.MAX_VALUE, parallelExport = Long.MAX_VALUE;
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				AVLTree inserted = new AVLTree();
+				for (int j = 0; j < keys.length; j++) {
+					inserted.insert(keys[j], infos[j]);
+				}
+				sequentialBuild = Math.min(sequentialBuild, System.nanoTime() - start);
+				start = System.nanoTime();
+				AVLTree built = fromSorted(keys, infos);
+				parallelBuild = Math.min(parallelBuild, System.nanoTime() - start);
+				start = System.nanoTime();
+				built.keysToArray();
+				sequentialExport = Math.min(sequentialExport, System.nanoTime() - start);
+				start = System.nanoTime();
+				built.keysToArrayParallel();
+				parallelExport = Math.min(parallelExport, System.nanoTime() - start);
+			}
+			System.out.printf("parallel checked; %d keys on %d cores: inserts %.1f ms, fromSorted %.1f ms, keysToArray %.1f ms, keysToArrayParallel %.1f ms%n",
+					FOOTPRINT_KEYS, Runtime.getRuntime().availableProcessors(),
+					sequentialBuild / 1e6, parallelBuild / 1e6, sequentialExport / 1e6, parallelExport / 1e6);
 		}
 		
-		public void setHeight(int height)
-		{
-			this.height = height;
+		// heap taken by sequential keys without infos, in AVLTree and in BucketAVLTree
+		private static void footprint() {
+			
+			long before = usedMemory();
+			AVLTree tree = new AVLTree();
+			for (int k = 0; k < FOOTPRINT_KEYS; k++) {
+				tree.insert(k, null);
+			}
+			long treeBytes = usedMemory() - before;
+			int treeSize = tree.size();
+			tree = null;
+			before = usedMemory();
+			BucketAVLTree buckets = new BucketAVLTree();
+			for (int k = 0; k < FOOTPRINT_KEYS; k++) {
+				buckets.insert(k, null);
+			}
+			long bucketBytes = usedMemory() - before;
+			System.out.printf("footprint of %d sequential keys: AVLTree %.1f MB, BucketAVLTree %.1f MB (%d keys)%n",
+					treeSize, treeBytes / 1e6, bucketBytes / 1e6, buckets.size());
 		}
 		
-		public int getHeight()
-		{
-			return height; 
+		private static long usedMemory() {
+			
+			Runtime runtime = Runtime.getRuntime();
+			for (int round = 0; round < 3; round++) {
+				System.gc();
+			}
+			return runtime.totalMemory() - runtime.freeMemory();
 		}
 		
-		public void setSum(int k) 
-		{
-			this.sum = k;
+		private static long runTree(BalancePolicy policy, int[] codes, int[] keys) {
+			
+			AVLTree tree = new AVLTree(policy);
+			long check = 0;
+			for (int n = 0; n < codes.length; n++) {
+				int k = keys[n];
+				switch (codes[n]) {
+				case INSERT: check += tree.insert(k, "v"); break;
+				case DELETE: check += tree.delete(k); break;
+				case SEARCH: check += tree.search(k) == null ? 0 : 1; break;
+				case SELECT: check += tree.empty() ? 0 : tree.select(1 + k % tree.size()).length(); break;
+				case LESS: check += tree.less(k); break;
+				case FLOOR: check += tree.floorKey(k); break;
+				default: check += tree.ceilingKey(k);
+				}
+			}
+			return check;
 		}
 		
-		public int getSum() 
-		{
-			return this.sum;
+		private static long runReference(int[] codes, int[] keys, int keyRange) {
+			
+			TreeMap<Integer, String> map = new TreeMap<>();
+			Fenwick ranks = new Fenwick(keyRange);
+			long check = 0;
+			for (int n = 0; n < codes.length; n++) {
+				int k = keys[n];
+				Integer found;
+				switch (codes[n]) {
+				case INSERT:
+					if (map.putIfAbsent(k, "v") == null) {
+						ranks.add(k, 1);
+					}
+					break;
+				case DELETE:
+					if (map.remove(k) != null) {
+						ranks.add(k, -1);
+					}
+					break;
+				case SEARCH: check += map.get(k) == null ? 0 : 1; break;
+				case SELECT: check += map.isEmpty() ? 0 : map.get(ranks.select(1 + k % map.size())).length(); break;
+				case LESS: check += ranks.sum(k); break;
+				case FLOOR: found = map.floorKey(k); check += found == null ? -1 : found; break;
+				default: found = map.ceilingKey(k); check += found == null ? -1 : found;
+				}
+			}
+			return check;
 		}
 		
+		// counts and key sums over [0, keyRange), for select and less of the reference
+		private static class Fenwick {
+			
+			private final int[] counts;
+			private final int[] sums;
+			
+			Fenwick(int keyRange) {
+				
+				this.counts = new int[keyRange + 1];
+				this.sums = new int[keyRange + 1];
+			}
+			
+			void add(int k, int delta) {
+				
+				for (int x = k + 1; x < counts.length; x += x & -x) {
+					counts[x] += delta;
+					sums[x] += delta * k;
+				}
+			}
+			
+			// sum of the keys <= k
+			int sum(int k) {
+				
+				int result = 0;
+				for (int x = Math.min(k + 1, counts.length - 1); x > 0; x -= x & -x) {
+					result += sums[x];
+				}
+				return result;
+			}
+			
+			// the i'th smallest key
+			int select(int i) {
+				
+				int pos = 0;
+				for (int step = Integer.highestOneBit(counts.length - 1); step > 0; step >>= 1) {
+					if (pos + step < counts.length && counts[pos + step] < i) {
+						pos += step;
+						i -= counts[pos];
+					}
+				}
+				return pos;
+			}
+		}
 	}
 
 }
-  
-